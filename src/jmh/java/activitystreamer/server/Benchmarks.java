@@ -0,0 +1,78 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Settings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Shared setup for benchmarks
+ */
+public final class Benchmarks {
+    public static final String SECRET = "benchmark-secret";
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Start Control on an ephemeral port, with announces effectively disabled so they don't add noise
+     *
+     * @return the Control instance
+     */
+    public static synchronized Control control() {
+        Settings.setSecret(SECRET);
+        Settings.setLocalPort(0);
+        Settings.setActivityInterval(Integer.MAX_VALUE);
+        return Control.getInstance();
+    }
+
+    /**
+     * Replace Control's connections with logged in null connections
+     *
+     * @param servers number of server connections
+     * @param clients number of client connections
+     * @return the connections, servers first
+     */
+    public static List<Connection> connections(int servers, int clients) {
+        List<Connection> connections = new ArrayList<>(servers + clients);
+        for (int i = 0; i < servers; i++) {
+            connections.add(new NullConnection(Connection.ConnectionType.SERVER, true));
+        }
+        for (int i = 0; i < clients; i++) {
+            connections.add(new NullConnection(Connection.ConnectionType.CLIENT, true));
+        }
+        Control control = control();
+        control.getConnections().clear();
+        for (Connection connection : connections) {
+            control.getConnections().add(connection);
+        }
+        return connections;
+    }
+
+    /**
+     * @param bytes approximate serialized size
+     * @return JSON activity object of about that size
+     */
+    public static String activity(int bytes) {
+        return "{\"type\":\"benchmark\",\"text\":\"" + text(Math.max(0, bytes - 30)) + "\"}";
+    }
+
+    /**
+     * @param length number of characters
+     * @return plain ASCII text
+     */
+    public static String text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Frame;
+import activitystreamer.util.MessageIdCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Fan-out of one encoded frame over null connections, a tenth of which are servers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int connections;
+
+    @Param({"64", "1024", "16384"})
+    public int payloadBytes;
+
+    private Control control;
+    private Connection sender;
+    private Frame broadcast;
+
+    @Setup
+    public void setup() {
+        control = Benchmarks.control();
+        int servers = Math.max(1, connections / 10);
+        sender = Benchmarks.connections(servers, connections - servers).get(0);
+        broadcast = Frame.activity("{\"command\":\"ACTIVITY_BROADCAST\",\"activity\":" +
+                Benchmarks.activity(payloadBytes) + "}");
+    }
+
+    @Benchmark
+    public void broadcastToAll(Blackhole blackhole) {
+        blackhole.consume(control.broadcastToAll(sender, broadcast, false, MessageIdCache.NO_ID,
+                Collections.<String>emptyList()));
+    }
+
+    @Benchmark
+    public int broadcastToServers() {
+        return control.broadcastToServers(sender, broadcast, false);
+    }
+}
@@ -0,0 +1,39 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Frame;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Connection without a socket for benchmarks. Queued frames are discarded straight away, as if a writer
+ * had drained them, and closing is ignored so the same connection can be reused every invocation.
+ */
+public class NullConnection extends Connection {
+
+    public NullConnection(ConnectionType type, boolean loggedIn) {
+        super(null, false);
+        setType(type);
+        setLoggedIn(loggedIn);
+    }
+
+    @Override
+    protected void outboundPending() {
+        outbound.clear();
+    }
+
+    @Override
+    public void closeCon() {
+    }
+
+    /**
+     * @see Connection#processData(Frame)
+     */
+    public boolean process(Frame data) {
+        return processData(data);
+    }
+}
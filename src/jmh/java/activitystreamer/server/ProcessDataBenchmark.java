@@ -0,0 +1,120 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Envelope;
+import activitystreamer.util.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Connection.processData for each command, received from a connection in the state the command expects and
+ * fanned out to a few null peers. Registration commands are handed off to a stripe by processData, so for
+ * those the stripe's work (Control.processRegistration) is measured directly, parse included. After the
+ * first invocation REGISTER and LOCK_REQUEST take the username already known path.
+ * Other than activities, messages are padded to the payload size with a field the server ignores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessDataBenchmark {
+
+    @Param({"AUTHENTICATE", "LOGIN", "LOGOUT", "ACTIVITY_MESSAGE", "ACTIVITY_BROADCAST", "SERVER_ANNOUNCE",
+            "REGISTER", "LOCK_REQUEST", "LOCK_DENIED", "LOCK_ALLOWED", "INVALID_MESSAGE"})
+    public String command;
+
+    @Param({"64", "1024", "16384"})
+    public int payloadBytes;
+
+    private Control control;
+    private NullConnection connection;
+    private Frame message;
+    private boolean registration;
+    private boolean loggedIn;
+
+    @Setup
+    public void setup() {
+        control = Benchmarks.control();
+        Benchmarks.connections(4, 16);
+
+        String padding = ",\"padding\":\"" + Benchmarks.text(payloadBytes) + "\"";
+        String user = ",\"username\":\"benchmark\",\"secret\":\"" + Benchmarks.SECRET + "\"";
+        Connection.ConnectionType type = Connection.ConnectionType.SERVER;
+        loggedIn = true;
+        String json;
+        switch (command) {
+            case "AUTHENTICATE":
+                loggedIn = false;
+                json = "{\"command\":\"AUTHENTICATE\",\"secret\":\"" + Benchmarks.SECRET + "\"" + padding + "}";
+                break;
+            case "LOGIN":
+                type = Connection.ConnectionType.CLIENT;
+                json = "{\"command\":\"LOGIN\",\"username\":\"anonymous\"" + padding + "}";
+                break;
+            case "LOGOUT":
+                type = Connection.ConnectionType.CLIENT;
+                json = "{\"command\":\"LOGOUT\"" + padding + "}";
+                break;
+            case "ACTIVITY_MESSAGE":
+                type = Connection.ConnectionType.CLIENT;
+                json = "{\"command\":\"ACTIVITY_MESSAGE\",\"username\":\"anonymous\",\"activity\":" +
+                        Benchmarks.activity(payloadBytes) + "}";
+                break;
+            case "ACTIVITY_BROADCAST":
+                json = "{\"command\":\"ACTIVITY_BROADCAST\",\"activity\":" + Benchmarks.activity(payloadBytes) + "}";
+                break;
+            case "SERVER_ANNOUNCE":
+                json = "{\"command\":\"SERVER_ANNOUNCE\",\"id\":\"benchmark\",\"load\":3,\"hostname\":\"localhost\"," +
+                        "\"port\":3781" + padding + "}";
+                break;
+            case "REGISTER":
+                type = Connection.ConnectionType.CLIENT;
+                loggedIn = false;
+                json = "{\"command\":\"REGISTER\"" + user + padding + "}";
+                break;
+            case "INVALID_MESSAGE":
+                json = "{\"command\":\"INVALID_MESSAGE\",\"info\":\"benchmark\"" + padding + "}";
+                break;
+            default:
+                json = "{\"command\":\"" + command + "\"" + user + padding + "}";
+        }
+        registration = command.equals("REGISTER") || command.startsWith("LOCK_");
+
+        connection = new NullConnection(type, loggedIn);
+        message = Frame.of(json);
+
+        if (type == Connection.ConnectionType.CLIENT && loggedIn) {
+            // sets the connection's user so activity messages validate
+            connection.process(Frame.of("{\"command\":\"LOGIN\",\"username\":\"anonymous\"}"));
+        }
+    }
+
+    @Benchmark
+    public boolean processData() {
+        // AUTHENTICATE/REGISTER change state, reset so every invocation takes the same path
+        connection.setLoggedIn(loggedIn);
+        if (registration) {
+            return control.processRegistration(connection, Envelope.parse(message));
+        }
+        return connection.process(message);
+    }
+}
@@ -0,0 +1,69 @@
+package activitystreamer.server;
+
+
+import activitystreamer.server.aux.ServerData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * LOGIN redirect lookup over the known servers, with loads spread randomly between 0 and 1000, and the
+ * announces that keep it ordered
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedirectBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int servers;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Benchmarks.control();
+        Random random = new Random(42);
+        Control.clearServers();
+        for (int i = 0; i < servers; i++) {
+            Control.announceServer("server-" + i, random.nextInt(1000), "localhost", 4000 + i, 5000);
+        }
+    }
+
+    /**
+     * Login at a load where about half the servers qualify
+     */
+    @Benchmark
+    public ServerData findRedirectServer() {
+        return Control.findRedirectServer(500);
+    }
+
+    /**
+     * One server's load changing by an announce
+     */
+    @Benchmark
+    public void announce() {
+        int i = next++ % servers;
+        Control.announceServer("server-" + i, (i * 7 + next) % 1000, "localhost", 4000 + i, 5000);
+    }
+}
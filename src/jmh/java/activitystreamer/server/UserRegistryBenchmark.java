@@ -0,0 +1,101 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Envelope;
+import activitystreamer.util.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Heap and off heap user registries. Setup fills the registry and prints the footprint of what it retains,
+ * heap measured after a full GC either side of filling, then the benchmarks time the LOGIN checks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class UserRegistryBenchmark {
+    private static final int SAMPLE = 1024;
+
+    @Param({"heap", "offheap"})
+    public String store;
+
+    @Param({"100000", "1000000"})
+    public int users;
+
+    private UserRegistry registry;
+    private final String[] usernames = new String[SAMPLE];
+    private final Envelope[] logins = new Envelope[SAMPLE];
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < SAMPLE; i++) {
+            int user = (int) ((long) i * users / SAMPLE);
+            usernames[i] = username(user);
+            logins[i] = Envelope.parse(Frame.of("{\"command\":\"LOGIN\",\"username\":\"" + usernames[i] +
+                    "\",\"secret\":\"" + secret(user) + "\"}"));
+        }
+
+        long before = usedHeap();
+        registry = store.equals("offheap") ? new OffHeapUserRegistry(users) : new HeapUserRegistry();
+        for (int i = 0; i < users; i++) {
+            registry.put(username(i), secret(i));
+        }
+        long heap = usedHeap() - before;
+        long offHeap = registry instanceof OffHeapUserRegistry ? ((OffHeapUserRegistry) registry).getReservedBytes() : 0;
+        System.out.println("footprint store=" + store + " users=" + users + " heap_bytes=" + heap +
+                " off_heap_bytes=" + offHeap + " bytes_per_user=" + (heap + offHeap) / users);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return registry.contains(usernames[next++ & (SAMPLE - 1)]);
+    }
+
+    /**
+     * LOGIN secret check against the received message
+     */
+    @Benchmark
+    public boolean checkSecret() {
+        int i = next++ & (SAMPLE - 1);
+        return registry.checkSecret(usernames[i], logins[i], "secret");
+    }
+
+    private static String username(int i) {
+        return "user" + i;
+    }
+
+    private static String secret(int i) {
+        return Integer.toString(i * 31 + 7, 32) + "secretsecretsecretsecret";
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,151 @@
+package activitystreamer.util;
+
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Every JsonCreator builder, string fields and activities sized by the payload parameter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonCreatorBenchmark {
+    private static final long MSG_ID = -6147295315402218301L;
+
+    @Param({"64", "1024", "16384"})
+    public int payloadBytes;
+
+    private String text;
+    private JSONObject activity;
+    private Envelope activityMessage;
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder(payloadBytes);
+        for (int i = 0; i < payloadBytes; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        text = builder.toString();
+        activity = new JSONObject().put("type", "benchmark").put("text", text);
+        activityMessage = Envelope.parse(Frame.of(
+                "{\"command\":\"ACTIVITY_MESSAGE\",\"username\":\"user\",\"secret\":\"secret\",\"activity\":" +
+                        activity + "}"));
+    }
+
+    @Benchmark
+    public Frame authenticate() {
+        return JsonCreator.authenticate(text);
+    }
+
+    @Benchmark
+    public Frame invalidMessage() {
+        return JsonCreator.invalidMessage(text);
+    }
+
+    @Benchmark
+    public Frame authenticationFail() {
+        return JsonCreator.authenticationFail(text);
+    }
+
+    @Benchmark
+    public Frame login() {
+        return JsonCreator.login("user", text);
+    }
+
+    @Benchmark
+    public Frame loginSuccess() {
+        return JsonCreator.loginSuccess(text);
+    }
+
+    @Benchmark
+    public Frame redirect() {
+        return JsonCreator.redirect(text, 3780);
+    }
+
+    @Benchmark
+    public Frame loginFailed() {
+        return JsonCreator.loginFailed(text);
+    }
+
+    @Benchmark
+    public Frame logout() {
+        return JsonCreator.logout();
+    }
+
+    @Benchmark
+    public Frame activityMessage() {
+        return JsonCreator.activityMessage("user", "secret", activity);
+    }
+
+    @Benchmark
+    public Frame serverAnnounce() {
+        return JsonCreator.serverAnnounce(text, 12, "localhost", 3780, 5000, MSG_ID, "*");
+    }
+
+    @Benchmark
+    public Frame activityBroadcastEnvelope() {
+        return JsonCreator.activityBroadcast(activityMessage, "user", MSG_ID);
+    }
+
+    @Benchmark
+    public Frame activityBroadcastObject() {
+        return JsonCreator.activityBroadcast(activity);
+    }
+
+    @Benchmark
+    public Frame register() {
+        return JsonCreator.register("user", text);
+    }
+
+    @Benchmark
+    public Frame registerFailed() {
+        return JsonCreator.registerFailed(text);
+    }
+
+    @Benchmark
+    public Frame registerSuccess() {
+        return JsonCreator.registerSuccess(text);
+    }
+
+    @Benchmark
+    public Frame lockRequest() {
+        return JsonCreator.lockRequest("user", text, MSG_ID);
+    }
+
+    @Benchmark
+    public Frame lockDenied() {
+        return JsonCreator.lockDenied("user", text, MSG_ID);
+    }
+
+    @Benchmark
+    public Frame lockAllowed() {
+        return JsonCreator.lockAllowed("user", text, "server", MSG_ID);
+    }
+
+    @Benchmark
+    public JSONObject processActivityObject() {
+        return JsonCreator.processActivityObject(activity, "user");
+    }
+}
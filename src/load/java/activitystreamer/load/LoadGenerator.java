@@ -0,0 +1,414 @@
+package activitystreamer.load;
+
+
+import activitystreamer.util.Histogram;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * End to end load generator. Starts a fresh cluster of servers for each scenario, drives it with simulated
+ * clients and prints one key=value report line per scenario, so reports from different builds can be diffed.
+ * <p>
+ * Scenarios:
+ * register - every client registers a new user, latency is REGISTER to REGISTER_SUCCESS
+ * login    - every client logs in to server 0 and follows redirects, latency is LOGIN to the final success
+ * activity - clients spread over all servers send activities at the target rate, latency is from sending to
+ * receipt of the ACTIVITY_BROADCAST at every other client
+ */
+public class LoadGenerator {
+    private static final Logger log = LogManager.getLogger();
+
+    private int servers = 3;
+    private ServerCluster.Topology topology = ServerCluster.Topology.CHAIN;
+    private int clients = 20;
+    private List<String> scenarios = Arrays.asList("register", "login", "activity");
+    private int rate = 50; // activities per second per client
+    private int duration = 10; // seconds
+    private int payload = 256; // activity text bytes
+    private int basePort = 4500;
+    private int announce = 1000; // milliseconds
+    private int workers = 32;
+    private List<String> serverArgs = new ArrayList<>();
+    private File logDir = new File("build/load");
+    private String reportFile = null;
+
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArguments(args);
+        try {
+            generator.run();
+        } catch (IOException e) {
+            log.fatal("FATAL - load run failed : " + e);
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+    private void run() throws IOException {
+        List<String> report = new ArrayList<>();
+        for (String scenario : scenarios) {
+            ServerCluster cluster = new ServerCluster(servers, topology, basePort, announce, serverArgs,
+                    new File(logDir, scenario));
+            try {
+                // let announces reach every server so registration and redirects see the whole cluster
+                sleep(2L * announce);
+
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("scenario", scenario);
+                result.put("topology", topology.name().toLowerCase());
+                result.put("servers", servers);
+                result.put("clients", clients);
+                switch (scenario) {
+                    case "register":
+                        registerStorm(cluster, result);
+                        break;
+                    case "login":
+                        loginStorm(cluster, result);
+                        break;
+                    case "activity":
+                        activityFlood(cluster, result);
+                        break;
+                    default:
+                        log.error("ERROR - unknown scenario " + scenario);
+                        continue;
+                }
+                String line = format(result);
+                System.out.println(line);
+                report.add(line);
+            } finally {
+                cluster.stop();
+            }
+        }
+
+        if (reportFile != null) {
+            try (Writer writer = new FileWriter(reportFile)) {
+                for (String line : report) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * Every client registers a distinct user at once, spread over the servers
+     */
+    private void registerStorm(final ServerCluster cluster, Map<String, Object> result) {
+        final Histogram latency = new Histogram();
+        final AtomicLong succeeded = new AtomicLong();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            final int id = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    SimClient client = new SimClient(id, latency, new AtomicLong());
+                    try {
+                        client.connect(ServerCluster.HOST, cluster.getPort(id % cluster.size()));
+                        long start = System.nanoTime();
+                        client.send(new JSONObject().put("command", "REGISTER")
+                                .put("username", "load-" + id).put("secret", "secret-" + id));
+                        JSONObject reply = client.await(30000);
+                        if (reply != null && reply.optString("command").equals("REGISTER_SUCCESS")) {
+                            latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                            succeeded.incrementAndGet();
+                        }
+                    } finally {
+                        client.close();
+                    }
+                    return null;
+                }
+            });
+        }
+        long elapsed = runAll(tasks);
+        result.put("ops", clients);
+        result.put("succeeded", succeeded.get());
+        putRates(result, succeeded.get(), elapsed);
+        putLatency(result, latency);
+    }
+
+    /**
+     * Every client logs in to server 0 at once, following redirects to less loaded servers
+     */
+    private void loginStorm(final ServerCluster cluster, Map<String, Object> result) {
+        final Histogram latency = new Histogram();
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong redirects = new AtomicLong();
+        final List<SimClient> connected = Collections.synchronizedList(new ArrayList<SimClient>());
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            final int id = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    SimClient client = new SimClient(id, latency, new AtomicLong());
+                    connected.add(client);
+                    long start = System.nanoTime();
+                    if (client.login(ServerCluster.HOST, cluster.getPort(0), "anonymous", null)) {
+                        latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                        succeeded.incrementAndGet();
+                    }
+                    redirects.addAndGet(client.getRedirects());
+                    return null;
+                }
+            });
+        }
+        // clients stay connected until all have logged in, so load builds up and redirects kick in
+        long elapsed = runAll(tasks);
+        for (SimClient client : connected) {
+            client.close();
+        }
+        result.put("ops", clients);
+        result.put("succeeded", succeeded.get());
+        result.put("redirects", redirects.get());
+        putRates(result, succeeded.get(), elapsed);
+        putLatency(result, latency);
+    }
+
+    /**
+     * Clients spread over every server stream activities at the target rate for the configured duration
+     */
+    private void activityFlood(final ServerCluster cluster, Map<String, Object> result) throws IOException {
+        final Histogram latency = new Histogram();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final List<SimClient> flood = new ArrayList<>();
+
+        List<Callable<Void>> logins = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            final SimClient client = new SimClient(i, latency, delivered);
+            final int port = cluster.getPort(i % cluster.size());
+            flood.add(client);
+            logins.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    if (!client.login(ServerCluster.HOST, port, "anonymous", null)) {
+                        throw new IOException("login failed");
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(logins);
+
+        final String padding = text(payload);
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(workers);
+        List<ScheduledFuture<?>> schedules = new ArrayList<>();
+        long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (final SimClient client : flood) {
+            final AtomicLong sequence = new AtomicLong();
+            schedules.add(senders.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.sendActivity(sequence.incrementAndGet(), padding);
+                        sent.incrementAndGet();
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }, (long) (random.nextDouble() * period), period, TimeUnit.NANOSECONDS));
+        }
+
+        sleep(TimeUnit.SECONDS.toMillis(duration));
+        for (ScheduledFuture<?> schedule : schedules) {
+            schedule.cancel(false);
+        }
+        senders.shutdown();
+        long sendTime = System.nanoTime() - start;
+
+        // wait for anything still in flight
+        long expected = sent.get() * (clients - 1);
+        long drainDeadline = System.currentTimeMillis() + 5000;
+        while (delivered.get() < expected && System.currentTimeMillis() < drainDeadline) {
+            sleep(50);
+        }
+        for (SimClient client : flood) {
+            client.close();
+        }
+
+        result.put("rate", rate);
+        result.put("payload", payload);
+        result.put("sent", sent.get());
+        result.put("expected", expected);
+        result.put("delivered", delivered.get());
+        result.put("errors", errors.get());
+        result.put("sent_per_s", perSecond(sent.get(), sendTime));
+        putRates(result, delivered.get(), sendTime);
+        putLatency(result, latency);
+    }
+
+    /**
+     * Run tasks on the worker pool and wait for all of them
+     *
+     * @return elapsed nanoseconds
+     */
+    private long runAll(List<Callable<Void>> tasks) {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        long start = System.nanoTime();
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.error("ERROR - client failed : " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void putRates(Map<String, Object> result, long count, long nanos) {
+        result.put("elapsed_ms", TimeUnit.NANOSECONDS.toMillis(nanos));
+        result.put("throughput_per_s", perSecond(count, nanos));
+    }
+
+    private static void putLatency(Map<String, Object> result, Histogram latency) {
+        result.put("p50_us", latency.percentile(50));
+        result.put("p90_us", latency.percentile(90));
+        result.put("p99_us", latency.percentile(99));
+        result.put("p999_us", latency.percentile(99.9));
+        result.put("max_us", latency.getMax());
+    }
+
+    private static long perSecond(long count, long nanos) {
+        return nanos == 0 ? 0 : count * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    private static String format(Map<String, Object> result) {
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, Object> entry : result.entrySet()) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return line.toString();
+    }
+
+    private static String text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        return text.toString();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void help(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("activitystreamer.load.LoadGenerator", "Activity Streamer load generator\n\n",
+                options, "", true);
+        System.exit(-1);
+    }
+
+    private void parseArguments(String[] args) {
+        Options options = new Options();
+        options.addOption("servers", true, "number of servers, default 3");
+        options.addOption("topology", true, "chain (default), star or tree");
+        options.addOption("clients", true, "number of simulated clients, default 20");
+        options.addOption("scenario", true, "comma separated scenarios from register,login,activity, default all");
+        options.addOption("rate", true, "activities per second per client, default 50");
+        options.addOption("duration", true, "seconds to send activities for, default 10");
+        options.addOption("payload", true, "activity text bytes, default 256");
+        options.addOption("baseport", true, "port of the first server, default 4500");
+        options.addOption("announce", true, "server announce interval in milliseconds, default 1000");
+        options.addOption("workers", true, "client worker threads, default 32");
+        options.addOption("serverargs", true, "extra arguments for every server, eg. \"-transport nio\"");
+        options.addOption("logdir", true, "directory for server output, default build/load");
+        options.addOption("report", true, "also write the report to this file");
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e1) {
+            help(options);
+        }
+
+        try {
+            servers = Integer.parseInt(cmd.getOptionValue("servers", Integer.toString(servers)));
+            clients = Integer.parseInt(cmd.getOptionValue("clients", Integer.toString(clients)));
+            rate = Integer.parseInt(cmd.getOptionValue("rate", Integer.toString(rate)));
+            duration = Integer.parseInt(cmd.getOptionValue("duration", Integer.toString(duration)));
+            payload = Integer.parseInt(cmd.getOptionValue("payload", Integer.toString(payload)));
+            basePort = Integer.parseInt(cmd.getOptionValue("baseport", Integer.toString(basePort)));
+            announce = Integer.parseInt(cmd.getOptionValue("announce", Integer.toString(announce)));
+            workers = Integer.parseInt(cmd.getOptionValue("workers", Integer.toString(workers)));
+        } catch (NumberFormatException e) {
+            log.error("numeric option could not be parsed : " + e.getMessage());
+            help(options);
+        }
+        if (servers < 1 || clients < 2 || workers < 1) {
+            log.error("need at least 1 server, 2 clients and 1 worker");
+            help(options);
+        }
+
+        if (cmd.hasOption("topology")) {
+            try {
+                topology = ServerCluster.Topology.valueOf(cmd.getOptionValue("topology").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.error("-topology requires chain, star or tree, parsed: " + cmd.getOptionValue("topology"));
+                help(options);
+            }
+        }
+        if (cmd.hasOption("scenario")) {
+            scenarios = Arrays.asList(cmd.getOptionValue("scenario").split(","));
+        }
+        if (cmd.hasOption("serverargs")) {
+            serverArgs = Arrays.asList(cmd.getOptionValue("serverargs").trim().split("\\s+"));
+        }
+        if (cmd.hasOption("logdir")) {
+            logDir = new File(cmd.getOptionValue("logdir"));
+        }
+        reportFile = cmd.getOptionValue("report");
+    }
+}
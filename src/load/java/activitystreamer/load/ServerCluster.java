@@ -0,0 +1,132 @@
+package activitystreamer.load;
+
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Servers for a load run, each in its own JVM on a loopback port since Control and Settings are per process
+ * singletons. Server i connects to its parent in the topology, server 0 is the root.
+ */
+public class ServerCluster {
+    private static final Logger log = LogManager.getLogger();
+
+    public static final String HOST = "127.0.0.1";
+    private static final String SECRET = "load-generator";
+
+    private final List<Process> processes = new ArrayList<>();
+    private final int basePort;
+
+    /**
+     * Start the servers, returning once every one accepts connections
+     *
+     * @param count      number of servers
+     * @param topology   how servers connect to each other
+     * @param basePort   port of server 0, server i listens on basePort + i
+     * @param announce   SERVER_ANNOUNCE interval in milliseconds
+     * @param serverArgs extra arguments passed to every server
+     * @param logDir     directory for server output
+     * @throws IOException if a server can't be started
+     */
+    public ServerCluster(int count, Topology topology, int basePort, int announce, List<String> serverArgs,
+                         File logDir) throws IOException {
+        this.basePort = basePort;
+        logDir.mkdirs();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classpath = System.getProperty("java.class.path");
+
+        // parents always start first, so each server can connect as soon as it is up
+        for (int i = 0; i < count; i++) {
+            List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", classpath, "activitystreamer.Server",
+                    "-lh", HOST, "-lp", Integer.toString(getPort(i)), "-s", SECRET, "-a", Integer.toString(announce)));
+            if (i > 0) {
+                command.addAll(Arrays.asList("-rh", HOST, "-rp", Integer.toString(getPort(topology.parent(i)))));
+            }
+            command.addAll(serverArgs);
+
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(new File(logDir, "server-" + i + ".log"));
+            processes.add(builder.start());
+            awaitPort(getPort(i));
+        }
+        log.info("INFO - started " + count + " servers in a " + topology.name().toLowerCase() + " from port " + basePort);
+    }
+
+    public int getPort(int server) {
+        return basePort + server;
+    }
+
+    public int size() {
+        return processes.size();
+    }
+
+    public void stop() {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void awaitPort(int port) throws IOException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(HOST, port), 200);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    stop();
+                    throw new IOException("server on port " + port + " did not start");
+                }
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                stop();
+                throw new IOException("interrupted waiting for server on port " + port);
+            }
+        }
+    }
+
+    public enum Topology {
+        CHAIN, STAR, TREE;
+
+        /**
+         * @param server index of a server other than the root
+         * @return index of the server it connects to
+         */
+        int parent(int server) {
+            switch (this) {
+                case STAR:
+                    return 0;
+                case TREE:
+                    return (server - 1) / 2;
+                case CHAIN:
+                default:
+                    return server - 1;
+            }
+        }
+    }
+}
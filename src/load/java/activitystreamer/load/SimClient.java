@@ -0,0 +1,191 @@
+package activitystreamer.load;
+
+
+import activitystreamer.util.Histogram;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Simulated client. Activity broadcasts sent by other simulated clients are timed against the send time
+ * carried in the activity, everything else is queued for the scenario to wait on.
+ */
+public class SimClient {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final JSONObject CLOSED = new JSONObject().put("command", "CONNECTION_CLOSED");
+    private static final int MAX_REDIRECTS = 50; // servers with stale loads can bounce a client between them
+
+    private final int id;
+    private final Histogram latency;
+    private final AtomicLong delivered;
+
+    private volatile BlockingQueue<JSONObject> replies = new LinkedBlockingQueue<>();
+    private Socket socket;
+    private Writer out;
+    private int redirects = 0;
+
+    /**
+     * @param id        unique id of this client within the run
+     * @param latency   records broadcast latency in microseconds
+     * @param delivered counts broadcasts received from other clients
+     */
+    public SimClient(int id, Histogram latency, AtomicLong delivered) {
+        this.id = id;
+        this.latency = latency;
+        this.delivered = delivered;
+    }
+
+    public void connect(String host, int port) throws IOException {
+        close();
+        // fresh queue, so the old connection's reader can't leave anything behind
+        final BlockingQueue<JSONObject> queue = new LinkedBlockingQueue<>();
+        replies = queue;
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF8));
+        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(in, queue);
+            }
+        }, "client-" + id);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Log in, following redirects until a server keeps the client or too many redirects
+     *
+     * @param host     first server to try
+     * @param port     port of that server
+     * @param username username, or anonymous
+     * @param secret   secret, ignored for anonymous
+     * @return true once logged in, false if refused or redirected too often
+     * @throws IOException if a connection fails
+     */
+    public boolean login(String host, int port, String username, String secret) throws IOException {
+        connect(host, port);
+        while (true) {
+            JSONObject login = new JSONObject().put("command", "LOGIN").put("username", username);
+            if (!username.equals("anonymous")) {
+                login.put("secret", secret);
+            }
+            send(login);
+            JSONObject reply = await(10000);
+            if (reply == null || !reply.optString("command").equals("LOGIN_SUCCESS")) {
+                return false;
+            }
+            // a redirect is written straight after the success, so it is already on its way if there is one
+            JSONObject redirect = await(100);
+            if (redirect == null || !redirect.optString("command").equals("REDIRECT")) {
+                if (redirect != null) {
+                    replies.add(redirect);
+                }
+                return true;
+            }
+            if (++redirects > MAX_REDIRECTS) {
+                return false;
+            }
+            connect(redirect.getString("hostname"), redirect.getInt("port"));
+        }
+    }
+
+    /**
+     * Send an activity stamped with this client's id and the send time
+     *
+     * @param sequence message number from this client
+     * @param padding  filler text to size the message
+     * @throws IOException if the write fails
+     */
+    public void sendActivity(long sequence, String padding) throws IOException {
+        JSONObject activity = new JSONObject()
+                .put("lg_client", id)
+                .put("lg_seq", sequence)
+                .put("lg_sent", System.nanoTime())
+                .put("text", padding);
+        send(new JSONObject().put("command", "ACTIVITY_MESSAGE").put("username", "anonymous")
+                .put("activity", activity));
+    }
+
+    public synchronized void send(JSONObject message) throws IOException {
+        out.write(message.toString());
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * @param timeoutMillis how long to wait
+     * @return next message other than a broadcast from another client, or null if none arrived in time
+     */
+    public JSONObject await(long timeoutMillis) {
+        try {
+            return replies.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    public int getRedirects() {
+        return redirects;
+    }
+
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            socket = null;
+        }
+    }
+
+    private void read(BufferedReader in, BlockingQueue<JSONObject> queue) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                long received = System.nanoTime();
+                JSONObject message;
+                try {
+                    message = new JSONObject(line);
+                } catch (JSONException e) {
+                    continue;
+                }
+                if (message.optString("command").equals("ACTIVITY_BROADCAST")) {
+                    JSONObject activity = message.optJSONObject("activity");
+                    if (activity != null && activity.has("lg_sent")) {
+                        if (activity.getInt("lg_client") != id) {
+                            latency.record(TimeUnit.NANOSECONDS.toMicros(received - activity.getLong("lg_sent")));
+                            delivered.incrementAndGet();
+                        }
+                        continue;
+                    }
+                }
+                queue.add(message);
+            }
+        } catch (IOException e) {
+            // closed, either end
+        }
+        queue.add(CLOSED);
+    }
+}
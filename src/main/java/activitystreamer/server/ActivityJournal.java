@@ -0,0 +1,548 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Envelope;
+import activitystreamer.util.Frame;
+import activitystreamer.util.JsonCreator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Every activity broadcast this server handles, kept on disk for a retention period so clients can ask what
+ * a user posted.
+ * <p>
+ * Broadcasts are queued without blocking and a single writer thread appends whatever has queued up as one
+ * batch to the current segment, a memory mapped file of fixed size, syncing once per batch. A new segment is
+ * started once the current one is full or older than the roll interval, and whole segments are deleted once
+ * everything in them is past retention. Each record is CRC32 checked, so a torn write at the end of a
+ * segment is ignored when the journal is reopened.
+ * <p>
+ * Records carry the offset of the same user's previous record in the segment, so a user's records can be
+ * walked newest first without touching anyone else's. The in memory index per segment and user is sparse,
+ * only the newest record and a checkpoint (time, offset) every CHECKPOINT_EVERY records, which is enough to
+ * start a walk within CHECKPOINT_EVERY records of any point in time.
+ */
+public class ActivityJournal {
+    private static final Logger log = LogManager.getLogger();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int SEGMENT_MAGIC = 0x41534a31;
+    private static final int SEGMENT_HEADER = 16; // magic, unused, start time
+    private static final int RECORD_HEADER = 22; // length, crc, time, previous offset, user length
+    private static final int CHECKPOINT_EVERY = 32;
+    private static final int MAX_BATCH = 4096;
+    private static final int QUEUE_CAPACITY = 65536;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long rollInterval;
+    private final long retention;
+    private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // guarded by this, the writer thread also reads them without the lock since only it changes them
+    private final List<Segment> segments = new ArrayList<>(); // oldest first
+    private Segment current;
+
+    /**
+     * Open the journal in a directory, creating it if needed, and start a new segment
+     *
+     * @param directory    where segments are kept
+     * @param segmentBytes size of each segment file
+     * @param rollInterval milliseconds after which a new segment is started
+     * @param retention    milliseconds activities are kept for
+     * @throws IOException if existing segments can't be read or a new one created
+     */
+    public ActivityJournal(File directory, int segmentBytes, long rollInterval, long retention) throws IOException {
+        this.directory = directory.toPath();
+        this.segmentBytes = segmentBytes;
+        this.rollInterval = rollInterval;
+        this.retention = retention;
+        Files.createDirectories(this.directory);
+
+        long start = System.currentTimeMillis();
+        long records = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().endsWith(".seg")) {
+                    Segment segment = Segment.open(file.toPath());
+                    if (segment != null) {
+                        segments.add(segment);
+                        records += segment.records;
+                    }
+                }
+            }
+        }
+        expire(start);
+        long number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number + 1;
+        current = Segment.create(this.directory, number, segmentBytes, start);
+        segments.add(current);
+        log.info("INFO - opened activity journal in " + directory + " with " + (segments.size() - 1) +
+                " segments (" + records + " activities) in " + (System.currentTimeMillis() - start) + " ms");
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "activity-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a broadcast to be written, never blocks, dropped if the writer has fallen too far behind
+     *
+     * @param broadcast activity broadcast
+     */
+    public void append(Frame broadcast) {
+        if (!queue.offer(broadcast)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * A page of a user's activities, newest first
+     *
+     * @param user   authenticated_user of the activities
+     * @param since  earliest time in milliseconds
+     * @param until  latest time in milliseconds
+     * @param limit  most activities to return
+     * @param before cursor returned with the previous page, or -1 to start with the newest
+     * @return HISTORY_ITEM frames and the cursor for the next page
+     * @throws IllegalArgumentException if the cursor isn't one this journal returned for the user
+     */
+    public synchronized Page query(String user, long since, long until, int limit, long before) {
+        List<Frame> items = new ArrayList<>();
+        long cursorSegment = before >= 0 ? before >>> 32 : Long.MAX_VALUE;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            if (segment.number > cursorSegment || segment.startTime > until) {
+                continue;
+            }
+            if (segment.endTime < since) {
+                break;
+            }
+            UserIndex index = segment.users.get(user);
+            if (index == null && segment.number != cursorSegment) {
+                continue;
+            }
+
+            int offset;
+            if (segment.number == cursorSegment) {
+                int cursorOffset = (int) before;
+                if (cursorOffset >= segment.end || !segment.isRecord(cursorOffset) ||
+                        !user.equals(segment.user(cursorOffset))) {
+                    throw new IllegalArgumentException("unknown cursor " + before);
+                }
+                offset = segment.previous(cursorOffset);
+            } else {
+                offset = index.startFor(until);
+            }
+
+            while (offset >= 0) {
+                long time = segment.time(offset);
+                if (time < since) {
+                    return new Page(items, -1);
+                }
+                if (time <= until) {
+                    items.add(segment.item(offset, time));
+                    if (items.size() >= limit) {
+                        return new Page(items, segment.number << 32 | offset);
+                    }
+                }
+                offset = segment.previous(offset);
+            }
+        }
+        return new Page(items, -1);
+    }
+
+    /**
+     * Write out whatever is queued and stop the writer
+     */
+    public void close() {
+        closed = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+
+    private void writeLoop() {
+        List<Frame> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Frame first = queue.poll(100, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                if (now - current.startTime >= rollInterval) {
+                    // an empty segment is kept rather than leaving a trail of them while idle
+                    if (current.end > SEGMENT_HEADER) {
+                        roll(now);
+                    } else {
+                        synchronized (this) {
+                            expire(now);
+                        }
+                    }
+                }
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                write(batch, now);
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                log.error("ERROR - failed to write activity journal : " + e);
+            } finally {
+                batch.clear();
+            }
+        }
+        try {
+            current.buffer.force();
+        } catch (RuntimeException e) {
+            log.error("ERROR - failed to sync activity journal : " + e);
+        }
+    }
+
+    /**
+     * Append a batch to the current segment, rolling when it fills, then sync and publish it to queries
+     */
+    private void write(List<Frame> batch, long now) throws IOException {
+        Map<String, Integer> latest = new HashMap<>(); // each user's last record this batch
+        List<String> users = new ArrayList<>(batch.size());
+        int[] offsets = new int[batch.size()];
+        int position = current.end;
+        CRC32 crc = new CRC32();
+
+        for (Frame broadcast : batch) {
+            String user;
+            try {
+                user = Envelope.parse(broadcast).getObject("activity").getString("authenticated_user");
+            } catch (JSONException e) {
+                log.debug("DEBUG - not journalling activity without authenticated_user : " + e.getMessage());
+                continue;
+            }
+            byte[] userBytes = user.getBytes(UTF8);
+            ByteBuffer frame = broadcast.buffer();
+            int size = RECORD_HEADER + userBytes.length + frame.remaining();
+            if (userBytes.length > 0xffff || SEGMENT_HEADER + size > segmentBytes) {
+                log.warn("WARN - activity by " + user + " too large to journal, " + size + " bytes");
+                continue;
+            }
+            if (position + size > segmentBytes) {
+                publish(users, offsets, position, now);
+                users.clear();
+                latest.clear();
+                roll(now);
+                position = current.end;
+            }
+
+            Integer previous = latest.get(user);
+            UserIndex index = current.users.get(user);
+            int previousOffset = previous != null ? previous : index != null ? index.last : -1;
+
+            byte[] record = new byte[size];
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            buffer.putInt(size - 8).putInt(0).putLong(now).putInt(previousOffset).putShort((short) userBytes.length);
+            buffer.put(userBytes).put(frame);
+            crc.reset();
+            crc.update(record, 8, size - 8);
+            buffer.putInt(4, (int) crc.getValue());
+
+            current.buffer.position(position);
+            current.buffer.put(record);
+            offsets[users.size()] = position;
+            users.add(user);
+            latest.put(user, position);
+            position += size;
+        }
+        publish(users, offsets, position, now);
+    }
+
+    /**
+     * Sync records written to the current segment then make them visible to queries
+     */
+    private void publish(List<String> users, int[] offsets, int end, long now) {
+        if (users.isEmpty()) {
+            return;
+        }
+        current.buffer.force();
+        synchronized (this) {
+            for (int i = 0; i < users.size(); i++) {
+                current.index(users.get(i), now, offsets[i]);
+            }
+            current.end = end;
+            current.endTime = now;
+        }
+    }
+
+    /**
+     * Start a new segment, and delete any now past retention
+     */
+    private void roll(long now) throws IOException {
+        current.buffer.force();
+        Segment next = Segment.create(directory, current.number + 1, segmentBytes, now);
+        synchronized (this) {
+            current = next;
+            segments.add(next);
+            expire(now);
+        }
+    }
+
+    private void expire(long now) {
+        while (segments.size() > 1 && segments.get(0).endTime < now - retention) {
+            Segment expired = segments.remove(0);
+            expired.close();
+            try {
+                Files.deleteIfExists(expired.file);
+            } catch (IOException e) {
+                log.error("ERROR - failed to delete expired journal segment " + expired.file + " : " + e);
+            }
+            log.info("INFO - deleted expired journal segment " + expired.file);
+        }
+    }
+
+    /**
+     * HISTORY_ITEM frames and the cursor to ask for the next page with, -1 if there are no more
+     */
+    public static final class Page {
+        final List<Frame> items;
+        final long next;
+
+        Page(List<Frame> items, long next) {
+            this.items = items;
+            this.next = next;
+        }
+    }
+
+    /**
+     * One user's records in a segment, the newest and a checkpoint every CHECKPOINT_EVERY
+     */
+    private static final class UserIndex {
+        private int last = -1;
+        private int count = 0;
+        private long[] times = new long[1];
+        private int[] offsets = new int[1];
+        private int checkpoints = 0;
+
+        void add(long time, int offset) {
+            if (count % CHECKPOINT_EVERY == 0) {
+                if (checkpoints == times.length) {
+                    times = Arrays.copyOf(times, checkpoints * 2);
+                    offsets = Arrays.copyOf(offsets, checkpoints * 2);
+                }
+                times[checkpoints] = time;
+                offsets[checkpoints++] = offset;
+            }
+            last = offset;
+            count++;
+        }
+
+        /**
+         * @return offset to walk back from to reach the newest record at or before until
+         */
+        int startFor(long until) {
+            int low = 0;
+            int high = checkpoints;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] > until) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low < checkpoints ? offsets[low] : last;
+        }
+    }
+
+    /**
+     * One mapped segment file
+     */
+    private static final class Segment {
+        final long number;
+        final long startTime;
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final Map<String, UserIndex> users = new HashMap<>();
+        int end = SEGMENT_HEADER;
+        long endTime;
+        long records = 0;
+
+        private Segment(long number, long startTime, Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.number = number;
+            this.startTime = startTime;
+            this.endTime = startTime;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path directory, long number, int size, long now) throws IOException {
+            Path file = directory.resolve(String.format("%016x.seg", number));
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, SEGMENT_MAGIC);
+            buffer.putLong(8, now);
+            buffer.force();
+            return new Segment(number, now, file, channel, buffer);
+        }
+
+        /**
+         * Map an existing segment and index its records, up to the first torn one
+         *
+         * @return the segment, or null if it isn't one
+         */
+        static Segment open(Path file) throws IOException {
+            long number;
+            try {
+                number = Long.parseLong(file.getFileName().toString().replace(".seg", ""), 16);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() < SEGMENT_HEADER || channel.size() > Integer.MAX_VALUE) {
+                channel.close();
+                log.warn("WARN - ignoring journal segment " + file + " of " + channel.size() + " bytes");
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (buffer.getInt(0) != SEGMENT_MAGIC) {
+                channel.close();
+                log.warn("WARN - ignoring journal segment " + file + " without the segment header");
+                return null;
+            }
+            Segment segment = new Segment(number, buffer.getLong(8), file, channel, buffer);
+            int offset = SEGMENT_HEADER;
+            while (segment.isRecord(offset)) {
+                long time = segment.time(offset);
+                segment.index(segment.user(offset), time, offset);
+                segment.endTime = time;
+                offset += 8 + buffer.getInt(offset);
+            }
+            segment.end = offset;
+            if (offset + 8 <= buffer.capacity() && buffer.getInt(offset) != 0) {
+                log.warn("WARN - discarded torn record at " + offset + " in journal segment " + file);
+            }
+            return segment;
+        }
+
+        void index(String user, long time, int offset) {
+            UserIndex index = users.get(user);
+            if (index == null) {
+                index = new UserIndex();
+                users.put(user, index);
+            }
+            index.add(time, offset);
+            records++;
+        }
+
+        /**
+         * @return true if a whole record with a matching checksum starts at offset
+         */
+        boolean isRecord(int offset) {
+            if (offset < SEGMENT_HEADER || offset > buffer.capacity() - RECORD_HEADER) {
+                return false;
+            }
+            int length = buffer.getInt(offset);
+            if (length < RECORD_HEADER - 8 || length > buffer.capacity() - offset - 8) {
+                return false;
+            }
+            byte[] bytes = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + 8);
+            view.get(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, length);
+            return (int) crc.getValue() == buffer.getInt(offset + 4);
+        }
+
+        long time(int offset) {
+            return buffer.getLong(offset + 8);
+        }
+
+        int previous(int offset) {
+            return buffer.getInt(offset + 16);
+        }
+
+        String user(int offset) {
+            byte[] bytes = new byte[buffer.getShort(offset + 20) & 0xffff];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + RECORD_HEADER);
+            view.get(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        /**
+         * @return the record's activity as a HISTORY_ITEM
+         */
+        Frame item(int offset, long time) {
+            int userLength = buffer.getShort(offset + 20) & 0xffff;
+            byte[] frame = new byte[buffer.getInt(offset) - (RECORD_HEADER - 8) - userLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + RECORD_HEADER + userLength);
+            view.get(frame);
+            return JsonCreator.historyItem(time, Envelope.parse(Frame.wrap(frame)).getObject("activity"));
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("ERROR - failed to close journal segment " + file + " : " + e);
+            }
+        }
+    }
+}
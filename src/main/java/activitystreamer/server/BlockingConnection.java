@@ -0,0 +1,201 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.ConnectionThreads;
+import activitystreamer.util.Frame;
+import activitystreamer.util.LineReader;
+import activitystreamer.util.Settings;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Thread per connection transport, blocks on reading lines from the socket. Reader and writer run on
+ * platform or virtual threads depending on Settings.getThreadMode()
+ */
+public class BlockingConnection extends Connection implements Runnable {
+
+    private LineReader in;
+    private BufferedOutputStream out;
+    private Thread thread;
+    private Thread writer;
+
+    // reading paused while a REGISTER is in progress, and what to run before reading again, guarded by itself
+    private final Object resumeLock = new Object();
+    private boolean readPaused = false;
+    private Runnable resumeTask = null;
+
+
+    BlockingConnection(Socket socket, boolean outgoing) throws IOException {
+        super(socket, outgoing);
+
+        in = new LineReader(socket.getInputStream());
+        // buffer holds a whole batch so each flush is a single write
+        out = new BufferedOutputStream(socket.getOutputStream(), Settings.getMaxBatchBytes());
+    }
+
+    /**
+     * Start the reader and writer, only once the connection is tracked so it can't end before it is added
+     */
+    void start() {
+        String address = Settings.socketAddress(socket);
+        thread = ConnectionThreads.start("reader-" + address, this);
+        writer = ConnectionThreads.start("writer-" + address, new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        });
+    }
+
+    /**
+     * Writer thread picks up queued messages itself
+     */
+    @Override
+    protected void outboundPending() {
+    }
+
+    /**
+     * Stop accepting messages, writer thread closes the socket once the queue has drained
+     */
+    @Override
+    public void closeCon() {
+        if (open) {
+            log.info("INFO - closing connection " + Settings.socketAddress(socket));
+            term = true;
+            open = false;
+            outbound.close();
+        }
+    }
+
+    /**
+     * Close the socket straight away, also unblocks a writer stuck on a full socket
+     */
+    @Override
+    protected void abort() {
+        super.abort();
+        closeSocket();
+    }
+
+    @Override
+    protected void pauseReading() {
+        synchronized (resumeLock) {
+            readPaused = true;
+        }
+    }
+
+    @Override
+    protected void resumeReading(Runnable resume) {
+        synchronized (resumeLock) {
+            readPaused = false;
+            resumeTask = resume;
+            resumeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait while reading is paused, running whatever resumes it on this thread, which may pause it again
+     */
+    private void awaitResume() throws InterruptedIOException {
+        while (true) {
+            Runnable task;
+            synchronized (resumeLock) {
+                while (readPaused && resumeTask == null) {
+                    try {
+                        resumeLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting for registration");
+                    }
+                }
+                task = resumeTask;
+                resumeTask = null;
+            }
+            if (task == null) {
+                return;
+            }
+            task.run();
+        }
+    }
+
+    /**
+     * Run main thread loop
+     */
+    @Override
+    public void run() {
+        try {
+            byte[] data;
+            while (!term && (data = in.readLine()) != null) {
+                // this is probably a terrible way of making sure closeCon() not overwritten if receive is underway
+                term = receive(Frame.wrap(data)) || term;
+                awaitResume();
+            }
+            log.debug("INFO - connection to " + Settings.socketAddress(socket) + " closed");
+        } catch (IOException e) {
+            log.error("ERROR - connection to " + Settings.socketAddress(socket) + " closed with exception : " + e);
+
+        } finally {
+            // let the writer flush anything queued (eg. error messages) before it closes the socket
+            closeCon();
+            connectionEnded();
+        }
+    }
+
+    /**
+     * Writer thread loop, gathers everything queued (waiting up to the batch window for more) into one
+     * write and flush, up to the maximum batch size
+     */
+    private void writeLoop() {
+        long window = TimeUnit.MICROSECONDS.toNanos(Settings.getBatchWindow());
+        int maxBatchBytes = Settings.getMaxBatchBytes();
+        try {
+            Frame frame;
+            while ((frame = outbound.take()) != null) {
+                long deadline = System.nanoTime() + window;
+                int batched = 0;
+                do {
+                    frame.writeTo(out);
+                    batched += frame.length();
+                    if (batched >= maxBatchBytes) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    frame = remaining > 0 ? outbound.poll(remaining, TimeUnit.NANOSECONDS) : outbound.poll();
+                } while (frame != null);
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (open) {
+                log.error("ERROR - write to " + Settings.socketAddress(socket) + " failed : " + e);
+            }
+        } catch (InterruptedException e) {
+            log.error("ERROR - writer for " + Settings.socketAddress(socket) + " interrupted");
+        } finally {
+            // nothing else will be written, so stop queueing
+            term = true;
+            open = false;
+            outbound.close();
+            outbound.clear();
+            closeSocket();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed?
+            log.error("ERROR - exception closing connection " + Settings.socketAddress(socket) + " : " + e);
+        }
+    }
+
+}
@@ -2,15 +2,24 @@ package activitystreamer.server;
 
 
 import activitystreamer.server.aux.ServerData;
+import activitystreamer.util.BloomFilter;
+import activitystreamer.util.Envelope;
+import activitystreamer.util.Frame;
+import activitystreamer.util.HashedWheelTimer;
 import activitystreamer.util.JsonCreator;
+import activitystreamer.util.Metrics;
 import activitystreamer.util.Settings;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.*;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Project : Activity Streamer Server
@@ -18,27 +27,47 @@ import java.net.Socket;
  * Date : 22 Mar 2018
  */
 
-public class Connection extends Thread {
-    private static final Logger log = LogManager.getLogger();
-
-    private Socket socket;
-    private DataInputStream in;
-    private DataOutputStream out;
-    private BufferedReader inreader;
-    private PrintWriter outwriter;
-
-    private boolean open = true;
-    private boolean term = false;
-    private boolean loggedIn = false; // login for client, auth for server
-    private String clientId = null; // if the connection is to a client and has attempted to log in
-    private ConnectionType type = null;
+/**
+ * Protocol state and message handling for a single client or server connection.
+ * Outgoing messages go through a bounded outbound queue, subclasses supply the transport (blocking thread
+ * per socket, or NIO event loop) that drains it, and feed each received line into receive.
+ */
+public abstract class Connection {
+    protected static final Logger log = LogManager.getLogger();
+    static final String LOCK_BATCH_EXTENSION = "lock_batch";
+
+    protected Socket socket;
+    protected final OutboundQueue outbound = new OutboundQueue(
+            Settings.getOutboundHighWater(), Settings.getOutboundLowWater(), Settings.getOverflowGrace());
+
+    protected volatile boolean open = true;
+    protected volatile boolean term = false;
+    // volatile since registration/lock processing reads these from other threads
+    private volatile boolean loggedIn = false; // login for client, auth for server
+    private volatile String clientId = null; // if the connection is to a client and has attempted to log in
+    private volatile ConnectionType type = null;
     private String connectionId = null; // can be either server or client id
+    private volatile boolean inputEnded = false; // a validated message ended the connection, ignore the rest
+    private volatile boolean routingEnded = false; // the end of the connection reached the route stage
+    // a client REGISTER is on its username's stripe, later lines wait for it, only used by the thread
+    // processing this connection's lines
+    private boolean held = false;
+    private final ArrayDeque<Runnable> heldLines = new ArrayDeque<>();
+    private volatile long lastReceived = System.nanoTime(); // for idle detection
+    private volatile HashedWheelTimer.Timeout idleCheck = null;
+    private volatile LockBatcher lockBatcher = null; // only for servers which accepted lock_batch
+    Metrics.Peer indexedAs = null; // which ConnectionIndex set holds this, guarded by this connection's lock
+    boolean subscribed = false; // receives only subscribed broadcasts, guarded by this connection's lock
+    Set<String> subscriptions = null; // SubscriptionIndex keys, guarded by the index
+    // for server links, interest of each origin server reached through this one, kept by InterestRoutes
+    final ConcurrentHashMap<String, BloomFilter> interests = new ConcurrentHashMap<>();
+    volatile boolean routesKnown = false; // an announce has arrived on this link
 
     // just for debugging
     public long timeCreated;
 
 
-    Connection(Socket socket, boolean outgoing) throws IOException {
+    protected Connection(Socket socket, boolean outgoing) {
 
         // if incoming, have to wait for auth/login messages to determine
         if(outgoing){
@@ -47,86 +76,205 @@ public class Connection extends Thread {
         }
 
         timeCreated = System.currentTimeMillis();
-
-        in = new DataInputStream(socket.getInputStream());
-        out = new DataOutputStream(socket.getOutputStream());
-        inreader = new BufferedReader(new InputStreamReader(in));
-        outwriter = new PrintWriter(out, true);
         this.socket = socket;
-        start();
     }
 
     /**
-     * Write to output stream of socket, PrintWriter implementation is threadsafe
+     * Queue message to be written by the connection's writer, never blocks on the socket
      *
      * @param msg string to be written
-     * @return true if connection is open and attempted write, but doesn't necessarily guaranteed msg sent
+     * @return true if connection is open and message queued, but doesn't necessarily guaranteed msg sent
      */
-    public synchronized boolean writeMsg(String msg) {
-        if (open) {
-            outwriter.println(msg);
-            outwriter.flush();
-            return true;
+    public boolean writeMsg(String msg) {
+        return writeFrame(Frame.of(msg));
+    }
+
+    /**
+     * Queue an already encoded frame, the same frame may be shared by any number of connections
+     *
+     * @param frame frame to be written
+     * @return true if connection is open and frame queued, but doesn't necessarily guaranteed frame sent
+     */
+    public boolean writeFrame(Frame frame) {
+        if (!open) {
+            return false;
         }
-        return false;
+        Metrics.sent(peer(), frame);
+        if (outbound.offer(frame)) {
+            overflow();
+        }
+        outboundPending();
+        return true;
     }
 
     /**
-     * Close the connection and cleanup streams
+     * Apply the configured policy to a connection which has stayed over its outbound high water mark
      */
-    public void closeCon() {
-        if (open) {
-            log.info("INFO - closing connection " + Settings.socketAddress(socket));
-            try {
-                term = true;
-                open = false;
-                socket.close();
-            } catch (IOException e) {
-                // already closed?
-                log.error("ERROR - exception closing connection " + Settings.socketAddress(socket) + " : " + e);
+    private void overflow() {
+        switch (Settings.getOverflowPolicy()) {
+            case DROP_OLDEST: {
+                int dropped = outbound.dropOldestActivities();
+                if (!outbound.isOverHighWater()) {
+                    log.warn("WARN - outbound queue full for " + Settings.socketAddress(socket) +
+                            ", dropped " + dropped + " oldest activities");
+                    return;
+                }
+                // mostly other messages, eg. a server link full of lock traffic, fall back to disconnecting
+                disconnectOverflow();
+                return;
+            }
+            case REDIRECT: {
+                ServerData server = isClient() ? Control.findRedirectServer(Integer.MAX_VALUE) : null;
+                if (server != null) {
+                    // other producers over the mark get here too, only the first one's REDIRECT is sent
+                    Frame redirect = JsonCreator.redirect(server.getHostname(), server.getPort());
+                    if (outbound.clearAndCloseWith(redirect)) {
+                        log.warn("WARN - outbound queue full for " + Settings.socketAddress(socket) +
+                                ", redirecting to " + server.getHostname() + ":" + server.getPort());
+                        closeCon();
+                    }
+                    return;
+                }
+                // nowhere to send it, fall back to disconnecting
+                disconnectOverflow();
+                return;
+            }
+            case DISCONNECT:
+            default: {
+                disconnectOverflow();
             }
         }
     }
 
+    private void disconnectOverflow() {
+        log.warn("WARN - outbound queue full for " + Settings.socketAddress(socket) + ", disconnecting");
+        abort();
+    }
+
     /**
-     * Run main thread loop
+     * Notify the transport that there are messages queued
      */
-    public void run() {
-        try {
-            String data;
-            while (!term && (data = inreader.readLine()) != null) {
-                // this is probably a terrible way of making sure closeCon() not overwritten if processData is underway
-                term = processData(data) || term;
-            }
-            socket.close();
-            log.debug("INFO - connection to " + Settings.socketAddress(socket) + " closed");
-        } catch (IOException e) {
-            log.error("ERROR - connection to " + Settings.socketAddress(socket) + " closed with exception : " + e);
-
-        } finally {
-            if (isClient()) {
-                Control.decrementCurrentLoad();
+    protected abstract void outboundPending();
+
+    /**
+     * Close the connection after anything already queued has been written
+     */
+    public abstract void closeCon();
+
+    /**
+     * Close the connection without writing anything still queued
+     */
+    protected void abort() {
+        outbound.clear();
+        closeCon();
+    }
+
+    /**
+     * @return System.nanoTime when a line was last received, or when the connection opened
+     */
+    long getLastReceived() {
+        return lastReceived;
+    }
+
+    void setIdleCheck(HashedWheelTimer.Timeout idleCheck) {
+        this.idleCheck = idleCheck;
+    }
+
+    HashedWheelTimer.Timeout getIdleCheck() {
+        return idleCheck;
+    }
+
+    /**
+     * Called by the transport exactly once when the connection has ended, to release load and deregister. When
+     * pipelined that waits for the lines already received to be processed, as they may still log in or subscribe.
+     */
+    protected void connectionEnded() {
+        Pipeline pipeline = Control.getPipeline();
+        if (pipeline == null) {
+            release();
+        } else {
+            pipeline.finish(this);
+        }
+    }
+
+    /**
+     * Release load and deregister, once nothing received on the connection is still to be processed
+     */
+    void release() {
+        if (isClient()) {
+            Control.decrementCurrentLoad();
+        }
+        Control.getInstance().connectionClosed(this);
+    }
+
+
+    /**
+     * Hand a received line to the pipeline, or process it straight away on the calling thread
+     *
+     * @param data line received, kept as raw bytes so relayed messages can be forwarded unchanged
+     * @return true if connection should close based on data received, always false when pipelined as the
+     * pipeline closes the connection itself
+     */
+    protected boolean receive(Frame data) {
+        lastReceived = System.nanoTime();
+        Metrics.received(peer(), data.length());
+        Pipeline pipeline = Control.getPipeline();
+        if (pipeline == null) {
+            if (held) {
+                // rest of a read while a REGISTER is in progress, processed once it's done
+                final Frame line = data;
+                holdLine(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!term && processInline(line)) {
+                            closeCon();
+                        }
+                    }
+                });
+                return false;
             }
-            Control.getInstance().connectionClosed(this);
+            return processInline(data);
         }
-        open = false;
-        outwriter.close();
+        pipeline.decode(this, data);
+        return false;
     }
 
+    private boolean processInline(Frame data) {
+        long start = System.nanoTime();
+        boolean close = processData(data);
+        Metrics.processed(System.nanoTime() - start);
+        return close;
+    }
 
     /**
-     * Processing of data received in individual connection. Calls synchronised Control method if broadcast required
+     * Processing of data received in individual connection. Calls Control method if broadcast required
      *
-     * @param data data string received
+     * @param data line received, kept as raw bytes so relayed messages can be forwarded unchanged
      * @return true if connection should close based on data received
      */
-    private boolean processData(String data) {
+    protected boolean processData(Frame data) {
+        Envelope json;
+        try {
+            // index the message once, fields are only decoded as each command asks for them
+            json = Envelope.parse(data);
+        } catch (JSONException e) {
+            return parseFailed(e);
+        }
+        return validate(json);
+    }
 
+    /**
+     * Check a message is valid for this connection's state and act on connection level commands, anything
+     * needing other connections is routed to Control
+     *
+     * @param json indexed message
+     * @return true if connection should close based on message
+     */
+    boolean validate(Envelope json) {
+        Metrics.parsed(json.getFrame());
 
         try {
-            JSONObject json = new JSONObject(data);
-
-            String command = json.getString("command");
+            String command = json.getCommand();
 
             switch (command) {
                 case "AUTHENTICATE": {
@@ -145,6 +293,23 @@ public class Connection extends Thread {
                     loggedIn = true;
 
                     log.info("AUTHENTICATE - successfully authenticated server");
+                    Control.getInstance().connectionUpdated(this);
+
+                    // servers which offer extensions expect to be told which were accepted, others get no reply
+                    if (json.has("extensions")) {
+                        List<String> accepted = acceptExtensions(json.getJSONArray("extensions"));
+                        writeFrame(JsonCreator.extensions(accepted));
+                        log.info("AUTHENTICATE - accepted extensions " + accepted);
+                    }
+                    break;
+                }
+
+                case "EXTENSIONS": {
+                    if (!loggedIn || !isServer()) {
+                        String error = "unauthenticated server";
+                        return termConnection(JsonCreator.invalidMessage(error), "EXTENSIONS - " + error);
+                    }
+                    log.info("EXTENSIONS - server accepted " + acceptExtensions(json.getJSONArray("extensions")));
                     break;
                 }
 
@@ -168,46 +333,36 @@ public class Connection extends Thread {
 
                     // if username is not anonymous, do some checks
                     if (!username.equals("anonymous")) {
-                        String secret = json.getString("secret");
 
                         // validate combination of username and secret & send failure if incorrect
+                        // the secret is compared as received, without decoding it
                         if (!Control.userExists(username)) {
                             String error = "user not registered";
                             return termConnection(JsonCreator.loginFailed(error), "LOGIN - "+error);
-                        } else if (!secret.equals(Control.getSecretForUser(username))) {
+                        } else if (!Control.checkSecret(username, json)) {
                             String error = "wrong secret";
                             return termConnection(JsonCreator.loginFailed(error), "LOGIN - "+error);
                         }
                     }
 
-                    // otherwise send success
+                    // otherwise send success, then any broadcasts missed if resuming, then live broadcasts
                     clientId = username;
                     String loginMessage = "logged in as user " + clientId;
-                    writeMsg(JsonCreator.loginSuccess(loginMessage));
-                    log.info("LOGIN_SUCCESS - "+loginMessage);
-
                     if(!loggedIn) {
                         Control.incrementCurrentLoad();
                     }
                     type = ConnectionType.CLIENT;
                     loggedIn = true;
+                    Control.getInstance().clientLoggedIn(this, loginMessage, json);
+                    log.info("LOGIN_SUCCESS - "+loginMessage);
 
                     // now check whether there is another server with lower load, if so, redirect
                     int currentLoad = Control.getCurrentLoad();
-                    String newServerId = null;
-                    int newServerLoad = Integer.MAX_VALUE;
 
                     // find a server that is at least 2 load lower
-                    for (ServerData server : Control.getServerList().values()) {
-                        int serverLoad = server.getLoad();
-                        if (currentLoad - serverLoad >= 2 && serverLoad < newServerLoad) {
-                            newServerId = server.getId();
-                            newServerLoad = serverLoad;
-                        }
-                    }
+                    ServerData newServer = Control.findRedirectServer(currentLoad - 2);
 
-                    if (newServerId != null) {
-                        ServerData newServer = Control.getServerList().get(newServerId);
+                    if (newServer != null) {
                         String newHostName = newServer.getHostname();
                         int newPort = newServer.getPort();
                         log.info("REDIRECT -  to " + newHostName + ":" + newPort);
@@ -224,6 +379,30 @@ public class Connection extends Thread {
 
                 }
 
+                case "SUBSCRIBE":
+                case "UNSUBSCRIBE": {
+
+                    // check that user has logged in & is client
+                    if (!isLoggedIn() || !isClient()) {
+                        String error = "no user client logged in";
+                        return termConnection(JsonCreator.authenticationFail(error), command + " - " + error);
+                    }
+
+                    return Control.getInstance().subscribe(this, json, command.equals("SUBSCRIBE"));
+                }
+
+                case "HISTORY": {
+
+                    // check that user has logged in & is client
+                    if (!isLoggedIn() || !isClient()) {
+                        String error = "no user client logged in";
+                        return termConnection(JsonCreator.authenticationFail(error), "HISTORY - " + error);
+                    }
+
+                    // answered from the journal here, it doesn't involve other connections
+                    return Control.getInstance().history(this, json);
+                }
+
                 case "ACTIVITY_MESSAGE": {
 
                     String username = json.getString("username");
@@ -243,7 +422,6 @@ public class Connection extends Thread {
 
                     // if not anonymous, check that secret is correct for username
                     if (!username.equals("anonymous")) {
-                        String secret = json.getString("secret");
 
                         // check that user exists
                         if(!Control.userExists(username)){
@@ -251,16 +429,15 @@ public class Connection extends Thread {
                             return termConnection(JsonCreator.authenticationFail(error), "ACTIVITY_MESSAGE - " +error);
                         }
 
-                        // check that username and secret match
-                        String storedSecret = Control.getSecretForUser(username);
-                        if(!storedSecret.equals(secret)){
+                        // check that username and secret match, comparing the secret as received
+                        if(!Control.checkSecret(username, json)){
                             String error = "wrong secret";
                             return termConnection(JsonCreator.authenticationFail(error), "ACTIVITY_MESSAGE - " +error);
                         }
 
                     }
 
-                    return Control.getInstance().process(this, json);
+                    return route(json);
 
                 }
 
@@ -272,13 +449,13 @@ public class Connection extends Thread {
                         return termConnection(JsonCreator.invalidMessage(error), "SERVER_ANNOUNCE - "+error);
                     }
 
-                    return Control.getInstance().process(this, json);
+                    return route(json);
                 }
 
                 case "ACTIVITY_BROADCAST": {
 
-                    // check it has an activity object
-                    JSONObject activity = json.getJSONObject("activity");
+                    // check it has an activity object, without decoding it
+                    json.checkObject("activity");
 
                     // check that activity object is processed
                     // apparently unnecessary according to discussion board & test server behaviour
@@ -287,23 +464,36 @@ public class Connection extends Thread {
 //                        return termConnection(JsonCreator.invalidMessage(error), "ACTIVITY_BROADCAST - "+error);
 //                    }
 
-                    return Control.getInstance().process(this, json);
+                    return route(json);
                 }
 
                 case "REGISTER": {
+                    if (isServer()) {
+                        return route(json);
+                    }
+
+                    // not routed, so the connection is held before a LOGIN following it is validated
                     return Control.getInstance().process(this, json);
                 }
 
                 case "LOCK_REQUEST": {
-                    return Control.getInstance().process(this, json);
+                    return route(json);
                 }
 
                 case "LOCK_DENIED": {
-                    return Control.getInstance().process(this, json);
+                    return route(json);
                 }
 
                 case "LOCK_ALLOWED": {
-                    return Control.getInstance().process(this, json);
+                    return route(json);
+                }
+
+                case "LOCK_BATCH": {
+                    if (!loggedIn || !isServer()) {
+                        String error = "server not authenticated";
+                        return termConnection(JsonCreator.invalidMessage(error), "LOCK_BATCH - " + error);
+                    }
+                    return route(json);
                 }
 
 
@@ -314,13 +504,212 @@ public class Connection extends Thread {
             }
 
         } catch (JSONException e) {
-            String error = "JSON parse exception : " + e.getMessage();
-            return termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - "+error);
+            return parseFailed(e);
         }
 
         return false;
     }
 
+    /**
+     * @return extensions this server can use with other servers, as configured
+     */
+    static List<String> supportedExtensions() {
+        List<String> extensions = new ArrayList<>();
+        if (Settings.getLockBatch() > 0) {
+            extensions.add(LOCK_BATCH_EXTENSION);
+        }
+        return extensions;
+    }
+
+    /**
+     * Start using whichever of the given extensions this server supports
+     *
+     * @param extensions extensions offered by, or accepted by, the other server
+     * @return those now in use
+     */
+    private List<String> acceptExtensions(JSONArray extensions) {
+        List<String> supported = supportedExtensions();
+        List<String> accepted = new ArrayList<>();
+        for (int i = 0; i < extensions.length(); i++) {
+            String extension = extensions.optString(i);
+            if (supported.contains(extension) && !accepted.contains(extension)) {
+                accepted.add(extension);
+            }
+        }
+        if (accepted.contains(LOCK_BATCH_EXTENSION)) {
+            lockBatcher = new LockBatcher(this);
+        }
+        return accepted;
+    }
+
+    /**
+     * Send a lock message, as part of a LOCK_BATCH if this server accepted them
+     *
+     * @param command  LOCK_REQUEST, LOCK_DENIED or LOCK_ALLOWED
+     * @param username username
+     * @param secret   secret
+     * @param serverId server which sent a LOCK_ALLOWED, or null
+     * @param msgId    id the message was first sent with, or NO_ID
+     * @param frame    the message already encoded, or null to encode it if needed
+     * @return true if connection is open and message queued
+     */
+    boolean sendLock(String command, String username, String secret, String serverId, long msgId, Frame frame) {
+        LockBatcher batcher = lockBatcher;
+        if (batcher == null) {
+            return writeFrame(frame != null ? frame : JsonCreator.lock(command, username, secret, serverId, msgId));
+        }
+        if (!open) {
+            return false;
+        }
+        batcher.add(command, username, secret, serverId, msgId);
+        return true;
+    }
+
+    /**
+     * Reply to a malformed message
+     *
+     * @param e parse failure
+     * @return true, connection should close
+     */
+    boolean parseFailed(JSONException e) {
+        Metrics.unparsable();
+        String error = "JSON parse exception : " + e.getMessage();
+        return termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - "+error);
+    }
+
+    /**
+     * Pass a validated message on to Control, through the pipeline's route stage if there is one
+     *
+     * @param json validated message
+     * @return true if connection should close, always false when pipelined
+     */
+    private boolean route(Envelope json) {
+        Pipeline pipeline = Control.getPipeline();
+        if (pipeline == null) {
+            return Control.getInstance().process(this, json);
+        }
+        pipeline.route(this, json);
+        return false;
+    }
+
+    /**
+     * A pipelined message ended the connection, drop anything received after it
+     */
+    void endInput() {
+        inputEnded = true;
+    }
+
+    boolean isInputEnded() {
+        return inputEnded;
+    }
+
+    /**
+     * Hold the connection's later lines while its REGISTER is on the username's stripe and stop reading until
+     * it's done, called on the thread processing its lines
+     */
+    void hold() {
+        held = true;
+        pauseReading();
+    }
+
+    boolean isHeld() {
+        return held;
+    }
+
+    /**
+     * @param line processing of a line which arrived while held, run once the connection is resumed
+     */
+    void holdLine(Runnable line) {
+        heldLines.add(line);
+    }
+
+    /**
+     * The REGISTER holding the connection is done, called on the username's stripe. Held lines are then
+     * processed on the connection's own thread, or its validate stripe when pipelined.
+     *
+     * @param close true if the REGISTER ended the connection
+     */
+    void registered(final boolean close) {
+        Pipeline pipeline = Control.getPipeline();
+        if (pipeline != null) {
+            pipeline.resume(this, close);
+            return;
+        }
+        resumeReading(new Runnable() {
+            @Override
+            public void run() {
+                if (close) {
+                    closeCon();
+                }
+                resumeHeld();
+            }
+        });
+    }
+
+    /**
+     * Process the lines held meanwhile in order, stopping if one of them is a REGISTER which holds the
+     * connection again
+     */
+    void resumeHeld() {
+        held = false;
+        Runnable line;
+        while (!held && (line = heldLines.poll()) != null) {
+            line.run();
+        }
+    }
+
+    /**
+     * Stop reading from the socket until resumeReading, transports override this, nothing is read here
+     */
+    protected void pauseReading() {
+    }
+
+    /**
+     * Read from the socket again
+     *
+     * @param resume run first on the thread processing the connection's lines, or null
+     */
+    protected void resumeReading(Runnable resume) {
+        if (resume != null) {
+            resume.run();
+        }
+    }
+
+    /**
+     * @return true if lines are received on a thread shared with other connections, which mustn't wait for room
+     * in a full pipeline stage
+     */
+    protected boolean sharesReadThread() {
+        return false;
+    }
+
+    /**
+     * Stop reading because the pipeline is backed up, apart from any pause for a REGISTER so that resuming
+     * one doesn't undo the other. Only transports on a shared thread need this, nothing is read here.
+     *
+     * @return false if already stopped for a backlog
+     */
+    protected boolean pauseForBacklog() {
+        return false;
+    }
+
+    /**
+     * The pipeline has caught up with what was received before pauseForBacklog, read again
+     */
+    protected void resumeAfterBacklog() {
+    }
+
+    /**
+     * The end of a pipelined connection reached the route stage, drop anything still queued behind it
+     */
+    void endRouting() {
+        routingEnded = true;
+    }
+
+    boolean isRoutingEnded() {
+        return routingEnded;
+    }
+
     /**
      * Utility method that writes any outgoing messages or logs before returning true to indicate connection should end
      *
@@ -328,9 +717,9 @@ public class Connection extends Thread {
      * @param errorMessage error message to log
      * @return true, passed to thread loop to end connection
      */
-    public boolean termConnection(String messageToClient, String errorMessage) {
+    public boolean termConnection(Frame messageToClient, String errorMessage) {
         if (messageToClient != null) {
-            writeMsg(messageToClient);
+            writeFrame(messageToClient);
         }
         if (errorMessage != null) {
             log.error(errorMessage);
@@ -348,6 +737,24 @@ public class Connection extends Thread {
     }
 
 
+    /**
+     * @return type to count this connection's traffic against
+     */
+    Metrics.Peer peer() {
+        ConnectionType current = type;
+        if (current == null || !loggedIn) {
+            return Metrics.Peer.UNKNOWN;
+        }
+        return current == ConnectionType.CLIENT ? Metrics.Peer.CLIENT : Metrics.Peer.SERVER;
+    }
+
+    /**
+     * @return bytes waiting in the outbound queue
+     */
+    public long getQueuedBytes() {
+        return outbound.getQueuedBytes();
+    }
+
     public boolean isClient(){
         return type!=null && type.equals(ConnectionType.CLIENT);
     }
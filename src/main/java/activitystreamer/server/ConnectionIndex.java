@@ -0,0 +1,194 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Metrics;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Open connections partitioned into authenticated servers, logged in clients and those still pending, so
+ * fan-out only visits the connections it sends to. Clients with subscriptions are kept apart from those
+ * receiving every broadcast, they are reached through the SubscriptionIndex instead. Adding, moving and
+ * removing are O(1), iteration walks the concurrent set directly without copying and sees a weakly consistent
+ * view.
+ */
+public class ConnectionIndex {
+    private final Set<Connection> servers = newSet();
+    private final Set<Connection> clients = newSet(); // receiving every broadcast
+    private final Set<Connection> subscribedClients = newSet();
+    private final Set<Connection> pending = newSet();
+
+    /**
+     * Start tracking a connection, under whatever it currently is
+     *
+     * @param con new connection
+     */
+    public void add(Connection con) {
+        synchronized (con) {
+            con.indexedAs = con.peer();
+            setFor(con, con.indexedAs).add(con);
+        }
+    }
+
+    /**
+     * Move a connection after it has authenticated or logged in, does nothing once it has been removed
+     *
+     * @param con connection whose state changed
+     */
+    public void update(Connection con) {
+        synchronized (con) {
+            Metrics.Peer current = con.peer();
+            if (con.indexedAs == null || con.indexedAs == current) {
+                return;
+            }
+            // added first so the connection is never missing from both, it may briefly be in both
+            setFor(con, current).add(con);
+            setFor(con, con.indexedAs).remove(con);
+            con.indexedAs = current;
+        }
+    }
+
+    /**
+     * Stop tracking a connection, exactly once when it has ended
+     *
+     * @param con closed connection
+     */
+    public void remove(Connection con) {
+        synchronized (con) {
+            if (con.indexedAs != null) {
+                setFor(con, con.indexedAs).remove(con);
+                con.indexedAs = null;
+            }
+        }
+    }
+
+    /**
+     * Move a client between receiving every broadcast and only those matching its subscriptions
+     *
+     * @param con        client connection
+     * @param subscribed true once it has any subscription, false when it has none left
+     */
+    public void setSubscribed(Connection con, boolean subscribed) {
+        synchronized (con) {
+            if (con.subscribed == subscribed) {
+                return;
+            }
+            if (con.indexedAs == Metrics.Peer.CLIENT) {
+                // added first so the connection is never missing from both, it may briefly be in both, which
+                // broadcastToClients allows for
+                (subscribed ? subscribedClients : clients).add(con);
+                (subscribed ? clients : subscribedClients).remove(con);
+            }
+            con.subscribed = subscribed;
+        }
+    }
+
+    public Iterable<Connection> servers() {
+        return servers;
+    }
+
+    public Iterable<Connection> clients() {
+        return clients;
+    }
+
+    public Iterable<Connection> pending() {
+        return pending;
+    }
+
+    /**
+     * @return every connection, servers then clients then subscribed clients then pending
+     */
+    public Iterable<Connection> all() {
+        return new Iterable<Connection>() {
+            @Override
+            public Iterator<Connection> iterator() {
+                return new Iterator<Connection>() {
+                    private final Iterator<?>[] parts = {servers.iterator(), clients.iterator(),
+                            subscribedClients.iterator(), pending.iterator()};
+                    private int part = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (part < parts.length && !parts[part].hasNext()) {
+                            part++;
+                        }
+                        return part < parts.length;
+                    }
+
+                    @Override
+                    public Connection next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return (Connection) parts[part].next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @param peer SERVER, CLIENT or UNKNOWN for pending
+     * @return connections of that kind
+     */
+    public int count(Metrics.Peer peer) {
+        switch (peer) {
+            case SERVER:
+                return servers.size();
+            case CLIENT:
+                return clients.size() + subscribedClients.size();
+            default:
+                return pending.size();
+        }
+    }
+
+    /**
+     * @return clients receiving only the broadcasts they subscribed to
+     */
+    public int countSubscribed() {
+        return subscribedClients.size();
+    }
+
+    public int size() {
+        return servers.size() + clients.size() + subscribedClients.size() + pending.size();
+    }
+
+    /**
+     * Forget every connection without closing any, for benchmarks
+     */
+    public void clear() {
+        for (Connection con : all()) {
+            remove(con);
+        }
+    }
+
+    private Set<Connection> setFor(Connection con, Metrics.Peer peer) {
+        switch (peer) {
+            case SERVER:
+                return servers;
+            case CLIENT:
+                return con.subscribed ? subscribedClients : clients;
+            default:
+                return pending;
+        }
+    }
+
+    private static Set<Connection> newSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    }
+}
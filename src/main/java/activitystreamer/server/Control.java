@@ -2,18 +2,39 @@ package activitystreamer.server;
 
 import activitystreamer.server.aux.Registration;
 import activitystreamer.server.aux.ServerData;
+import activitystreamer.util.BloomFilter;
+import activitystreamer.util.Envelope;
+import activitystreamer.util.Frame;
+import activitystreamer.util.HashedWheelTimer;
 import activitystreamer.util.JsonCreator;
+import activitystreamer.util.MessageIdCache;
+import activitystreamer.util.Metrics;
+import activitystreamer.util.MetricsEndpoint;
+import activitystreamer.util.PhiAccrualDetector;
+import activitystreamer.util.ReplayRing;
 import activitystreamer.util.Settings;
+import activitystreamer.util.StripedExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Project : Activity Streamer Server
@@ -26,16 +47,37 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class Control extends Thread {
     private static final Logger log = LogManager.getLogger();
+    private static final int HEARTBEAT_WINDOW = 100; // announce intervals the failure detector remembers per server
+    private static final int JOURNAL_SEGMENT_BYTES = 64 << 20; // size of each activity journal file
+    private static final int MAX_HISTORY_PAGE = 100; // most activities sent for one HISTORY
+    private static final int MAX_SUBSCRIPTIONS = 1000; // users and tags one client may subscribe to
     private static Control control = null;
 
     private static Listener listener;
-    private static CopyOnWriteArrayList<Connection> connections;
+    private static NioListener nioListener;
+    private static ConnectionIndex connections;
+    private static SubscriptionIndex subscriptions = new SubscriptionIndex();
+    private static InterestRoutes routes = new InterestRoutes();
+    private static volatile BloomFilter announcedInterest = null; // in this server's last announce
+    private static final AtomicBoolean announcePending = new AtomicBoolean(false);
+    private static final AtomicLong notForwarded = new AtomicLong(0); // activities kept off uninterested links
     private static AtomicInteger currentLoad = new AtomicInteger(0);
     private static boolean term = false;
 
-    private static ConcurrentHashMap<String, String> userList = new ConcurrentHashMap<>();
+    private static UserRegistry users = new HeapUserRegistry();
     private static ConcurrentHashMap<String, ServerData> serverList = new ConcurrentHashMap<>();
+    private static ServerLoadIndex serverIndex = new ServerLoadIndex();
+    private static ConcurrentHashMap<String, ServerData> suspectedServers = new ConcurrentHashMap<>();
+    private static volatile double maxPhi = 0;
+    private static MessageIdCache messageIds;
+    private static ReplayRing replay = null;
+    private static ActivityJournal journal = null;
+    private static final AtomicLong messageSequence = new AtomicLong(new SecureRandom().nextLong());
     private static ConcurrentHashMap<String, Registration> registrationPool = new ConcurrentHashMap<>();
+    private static StripedExecutor registrationExecutor;
+    private static Pipeline pipeline = null;
+    private static HashedWheelTimer timer;
+    private static MetricsEndpoint metricsEndpoint = null;
 
 
     // only allow one instance of Control
@@ -52,12 +94,73 @@ public class Control extends Thread {
         Settings.setServerId(Settings.nextSecret());
         log.info("INFO - server id : " + Settings.getServerId());
 
-        // initialize the connections array
-        connections = new CopyOnWriteArrayList<>();
+        // initialize the connection index
+        connections = new ConnectionIndex();
 
-        // start a listener
+        // announces, registration timeouts and idle checks, ticked by the control thread
+        long tick = Math.min(100, Settings.getActivityInterval());
+        if (Settings.getLockBatch() > 0) {
+            tick = Math.min(tick, Settings.getLockBatchWindow());
+        }
+        timer = new HashedWheelTimer(Math.max(1, tick), 512);
+
+        // ids of server messages already handled, so redundant links between servers don't loop them
+        messageIds = new MessageIdCache(Settings.getDedupCapacity(), Settings.getDedupTtl());
+
+        // recent client broadcasts for clients which reconnect
+        if (Settings.getReplayBytes() > 0) {
+            replay = new ReplayRing(Settings.getReplayBytes());
+        }
+
+        // broadcast activities kept on disk for HISTORY
+        if (Settings.getJournalDirectory() != null) {
+            try {
+                journal = new ActivityJournal(new File(Settings.getJournalDirectory()), JOURNAL_SEGMENT_BYTES,
+                        Settings.getJournalRoll(), Settings.getJournalRetention());
+            } catch (IOException e) {
+                log.fatal("FATAL - failed to open activity journal in " + Settings.getJournalDirectory() + " : " + e);
+                System.exit(-1);
+            }
+        }
+
+        // registration/lock protocol workers, striped by username
+        registrationExecutor = new StripedExecutor("registration", Settings.getRegistrationThreads());
+
+        // registered users survive restarts if a directory is configured
+        if (Settings.getUserStore() == Settings.UserStore.OFFHEAP) {
+            users = new OffHeapUserRegistry();
+        }
+        if (Settings.getUserDirectory() != null) {
+            try {
+                users = new PersistentUserRegistry(users, new File(Settings.getUserDirectory()),
+                        Settings.getDurability(), Settings.getSnapshotEvery());
+            } catch (IOException e) {
+                log.fatal("FATAL - failed to load registered users from " + Settings.getUserDirectory() + " : " + e);
+                System.exit(-1);
+            }
+        }
+
+        // staged processing if configured, otherwise connections process messages inline
+        if (Settings.isPipeline()) {
+            pipeline = new Pipeline();
+        }
+
+        registerGauges();
+        if (Settings.getMetricsPort() > 0) {
+            try {
+                metricsEndpoint = new MetricsEndpoint(Settings.getMetricsPort());
+            } catch (IOException e) {
+                log.error("ERROR - failed to start metrics endpoint on port " + Settings.getMetricsPort() + " : " + e);
+            }
+        }
+
+        // start a listener for the configured transport
         try {
-            listener = new Listener();
+            if (Settings.getTransport() == Settings.Transport.NIO) {
+                nioListener = new NioListener();
+            } else {
+                listener = new Listener();
+            }
         } catch (IOException e1) {
             log.fatal("FATAL - failed to startup a listening thread : " + e1);
             System.exit(-1);
@@ -84,42 +187,96 @@ public class Control extends Thread {
 
 
             try {
-                Connection outgoingConn = outgoingConnection(
-                        new Socket(Settings.getRemoteHostname(), Settings.getRemotePort()));
-                boolean writeResult = outgoingConn.writeMsg(JsonCreator.authenticate(Settings.getSecret()));
-
-                if (!writeResult) {
-                    throw new IOException("connection not open");
-                }
-
-
+                connectTo(Settings.getRemoteHostname(), Settings.getRemotePort());
             } catch (IOException e) {
                 log.error("failed to make connection to " +
                         Settings.getRemoteHostname() + ":" + Settings.getRemotePort() + " : " + e);
                 System.exit(-1);
             }
         }
+
+        // extra links are redundancy, so one that fails isn't fatal
+        for (InetSocketAddress peer : Settings.getPeers()) {
+            try {
+                connectTo(peer.getHostString(), peer.getPort());
+            } catch (IOException e) {
+                log.error("ERROR - failed to make connection to peer " + peer.getHostString() + ":" + peer.getPort() +
+                        " : " + e);
+            }
+        }
+    }
+
+    /**
+     * Connect and authenticate to another server
+     */
+    private void connectTo(String hostname, int port) throws IOException {
+        Connection outgoingConn;
+        if (nioListener != null) {
+            outgoingConn = nioListener.connect(hostname, port);
+        } else {
+            outgoingConn = outgoingConnection(new Socket(hostname, port));
+        }
+        // only offer extensions when there are any, so servers without them see the usual message
+        List<String> extensions = Connection.supportedExtensions();
+        boolean writeResult = outgoingConn.writeFrame(extensions.isEmpty()
+                ? JsonCreator.authenticate(Settings.getSecret())
+                : JsonCreator.authenticate(Settings.getSecret(), extensions));
+
+        if (!writeResult) {
+            throw new IOException("connection not open");
+        }
     }
 
     // Main thread loop
     @Override
     public void run() {
         log.info("INFO - starting control loop with activity interval of " + Settings.getActivityInterval() + " milliseconds");
+        scheduleActivity();
+        if (Settings.getPhiThreshold() > 0) {
+            scheduleFailureCheck();
+        }
         while (!term) {
-            // do something with x second intervals in between
             try {
-                Thread.sleep(Settings.getActivityInterval());
+                timer.tick();
             } catch (InterruptedException e) {
                 log.error("ERROR - received interrupt, system is shutting down");
                 break;
             }
+        }
+    }
 
-            if (!term) {
-                // currently pretty pointless since always returns false
-                // in case external thread sets term to true during execution of if block
-                term = term || doActivity();
+    /**
+     * Run doActivity after the activity interval, and again after each run until terminating
+     */
+    private void scheduleActivity() {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!term) {
+                    // currently pretty pointless since always returns false
+                    // in case external thread sets term to true during execution of if block
+                    term = term || doActivity();
+                }
+                if (!term) {
+                    scheduleActivity();
+                }
             }
-        }
+        }, Settings.getActivityInterval());
+    }
+
+    /**
+     * Check the known servers for failure a few times per activity interval, until terminating
+     */
+    private void scheduleFailureCheck() {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!term) {
+                    checkServers();
+                    scheduleFailureCheck();
+                }
+            }
+        }, Math.max(1, Settings.getActivityInterval() / 4));
     }
 
     /**
@@ -133,10 +290,28 @@ public class Control extends Thread {
          * not entirely sure if there's a reliable way to asynchronously terminate Connection loops
          * while waiting for all of them
          */
-        for (Connection connection : connections) {
+        registrationExecutor.shutdown();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+        for (Connection connection : connections.all()) {
             connection.closeCon();
         }
-        listener.setTerm(true);
+        if (nioListener != null) {
+            nioListener.setTerm(true);
+        } else {
+            listener.setTerm(true);
+        }
+
+        // let queued registrations finish so they make it into the user log
+        registrationExecutor.awaitTermination(1000);
+        users.close();
+        if (journal != null) {
+            journal.close();
+        }
 
         try {
             Thread.sleep(100);
@@ -156,37 +331,29 @@ public class Control extends Thread {
 
         // calculate client load
         // can only count clients who have logged in at least once in the past
-        int load = 0;
-        for (Connection connection : connections) {
-            if (connection.isClient()) {
-                load++;
-            }
-        }
+        int load = connections.count(Metrics.Peer.CLIENT);
 
-        String serverAnnounce = JsonCreator.serverAnnounce(
+        BloomFilter interest = localInterest();
+        announcedInterest = interest;
+        Frame serverAnnounce = JsonCreator.serverAnnounce(
                 Settings.getServerId(),
                 load,
                 Settings.getLocalHostname(),
-                Settings.getLocalPort());
+                Settings.getLocalPort(),
+                Settings.getActivityInterval(),
+                newMessageId(),
+                interest.encode());
 
 
-        for (Connection connection : connections) {
-            if (connection.isServer() && connection.isLoggedIn()) {
-                connection.writeMsg(serverAnnounce);
-            }
+        for (Connection connection : connections.servers()) {
+            connection.writeFrame(serverAnnounce);
         }
         log.debug("DEBUG - generated and broadcast SERVER_ANNOUNCE " + serverAnnounce);
 
+        if (pipeline != null) {
+            pipeline.report();
+        }
 
-        // *BUG* should probably close client connections after removing rego attempt, but not in spec
-        // safe to remove from ConcurrentHashMap while iterating
-//        for(Map.Entry<String, Registration> entry : registrationPool.entrySet()){
-//            if(System.currentTimeMillis() - entry.getValue().getStartTime()>10000){
-//
-//                registrationPool.remove(entry.getKey());
-//                log.debug("timeout on registration for "+entry.getKey() + ", removed");
-//            }
-//        }
 
         return false;
     }
@@ -195,54 +362,82 @@ public class Control extends Thread {
     /**
      * Method for processing any messages that require action involving sending messages to
      * connections other than the originating one.
-     * Synchronised method maintains order of outgoing broadcasts.
-     * As much processing as possible takes place on individual connection threads to reduce blocking.
+     * Activity and announce messages are handled on the receiving connection's thread, or its route and encode
+     * stripes when pipelined, which keeps them in order per source, fan-out only queues onto each connection
+     * so nothing here blocks on a socket.
+     * Registration and lock messages are handed to a per-username stripe, see processRegistration.
      *
      * @param processCon connection receiving message
-     * @param json       JSONObject from message string if parsable
+     * @param json       indexed message, relayed messages are forwarded from its frame unchanged
      * @return true if connection should terminate based on message
      */
-    public synchronized boolean process(Connection processCon, JSONObject json) {
+    public boolean process(Connection processCon, Envelope json) {
 
         try {
-            String command = json.getString("command");
+            String command = json.getCommand();
 
             switch (command) {
                 case "ACTIVITY_MESSAGE": {
 
                     // forward to all other servers/clients (connection has already validated info)
-                    // extract activity object and add user field
-                    JSONObject processedActivityObject = json
-                            .getJSONObject("activity")
-                            .put("authenticated_user", processCon.getClientId());
-
-                    // put processed activity into a broadcast message and send to other servers/clients
-                    String activityBroadcast = JsonCreator.activityBroadcast(processedActivityObject);
-                    Pair<Integer, Integer> result = broadcastToAll(processCon, activityBroadcast, true);
-                    log.info("ACTIVITY_MESSAGE - forwarded to " + result.fst + " servers, " + result.snd + " clients");
+                    // activity is spliced into the broadcast as received, with the user field added
+                    // validation checked username is the logged in user, use it rather than the connection's
+                    // current user which may have moved on by the time a pipelined message gets here
+                    final Connection con = processCon;
+                    final Envelope message = json;
+                    final String username = json.getString("username");
+                    final List<String> keys = subscriptionKeys(username, json);
+                    fanOut(processCon, new FanOut() {
+                        @Override
+                        void deliver() {
+                            long msgId = newMessageId();
+                            Frame activityBroadcast = JsonCreator.activityBroadcast(message, username, msgId);
+                            Pair<Integer, Integer> result = broadcastToAll(con, activityBroadcast, true, msgId, keys);
+                            log.info("ACTIVITY_MESSAGE - forwarded to " + result.fst + " servers, " + result.snd + " clients");
+                        }
+                    });
 
                     break;
                 }
 
                 case "SERVER_ANNOUNCE": {
 
-                    // this assumes no servers quit or crash so there is no need to ever prune the server list
+                    if (seenBefore(processCon, command, json)) {
+                        break;
+                    }
+
+                    // also a heartbeat, servers which stop announcing are pruned by checkServers
 
                     String id = json.getString("id");
                     int load = json.getInt("load");
                     String hostname = json.getString("hostname");
                     int port = json.getInt("port");
-
-                    // update server list
-                    ServerData server = serverList.get(id);
-                    if (server == null) {
-                        serverList.put(id, new ServerData(id, load, hostname, port));
-                    } else {
-                        server.setLoad(load);
+                    // older servers don't say how often they announce
+                    long interval = json.has("interval") ? json.getLong("interval") : 0;
+
+                    announceServer(id, load, hostname, port, interval);
+
+                    // servers without interest summaries are sent everything
+                    BloomFilter interest = BloomFilter.EVERYTHING;
+                    if (json.has("interest")) {
+                        try {
+                            interest = BloomFilter.decode(json.getString("interest"));
+                        } catch (IllegalArgumentException e) {
+                            log.warn("WARN - sending everything to server " + id + ", unreadable interest : " +
+                                    e.getMessage());
+                        }
                     }
+                    routes.update(id, processCon, interest);
 
                     // forward to all other servers
-                    broadcastToServers(processCon, json.toString(), false);
+                    final Connection con = processCon;
+                    final Frame announce = json.getFrame();
+                    fanOut(processCon, new FanOut() {
+                        @Override
+                        void deliver() {
+                            broadcastToServers(con, announce, false);
+                        }
+                    });
                     log.info("SERVER_ANNOUNCE - from " + id + " at " + hostname + ":" + port + ", load : " + load);
 
                     break;
@@ -251,210 +446,581 @@ public class Control extends Thread {
 
                 case "ACTIVITY_BROADCAST": {
 
-                    Pair<Integer, Integer> result = broadcastToAll(processCon, json.toString(), false);
-                    log.info("ACTIVITY_BROADCAST received - forwarded to " +
-                            result.fst + " servers, " + result.snd + " clients");
+                    if (seenBefore(processCon, command, json)) {
+                        break;
+                    }
+
+                    final Connection con = processCon;
+                    final Frame activityBroadcast = json.getFrame().asActivity();
+                    final long msgId = json.has("msg_id") ? json.getLong("msg_id") : MessageIdCache.NO_ID;
+                    final List<String> keys = subscriptionKeys(null, json);
+                    fanOut(processCon, new FanOut() {
+                        @Override
+                        void deliver() {
+                            Pair<Integer, Integer> result = broadcastToAll(con, activityBroadcast, false, msgId, keys);
+                            log.info("ACTIVITY_BROADCAST received - forwarded to " +
+                                    result.fst + " servers, " + result.snd + " clients");
+                        }
+                    });
 
                     break;
                 }
 
                 case "REGISTER": {
 
-                    String username = json.getString("username");
-                    String secret = json.getString("secret");
-
-                    log.info("REGISTER - attempting registration for " + username + " with secret " + secret);
+                    if (seenBefore(processCon, command, json)) {
+                        break;
+                    }
 
+                    // a client's next message may depend on its registration, eg. a LOGIN as the new user, so
+                    // the connection is held until the username's stripe has finished it
+                    return registerClient(processCon, json.getString("username"), json.getString("secret"),
+                            json.getFrame());
+                }
 
-                    // check that username isn't null
-                    if (username == null) {
-                        String error = "null username";
-                        return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
-                    }
+                case "LOCK_REQUEST":
+                case "LOCK_DENIED":
+                case "LOCK_ALLOWED": {
 
-                    // check that the username isn't already in storage
-                    if (userExists(username)) {
-                        String error = "username " + username + " already registered";
-                        return processCon.termConnection(JsonCreator.registerFailed(error), "REGISTER_FAILED - " + error);
+                    if (seenBefore(processCon, command, json)) {
+                        break;
                     }
 
-                    // check that secret isn't null
-                    if (secret == null) {
-                        String error = "null secret";
-                        return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
-                    }
+                    // registration and lock messages only need ordering per username, so run them on that
+                    // username's stripe, unrelated usernames and all activity traffic proceed in parallel
+                    dispatchRegistration(processCon, command, json.getString("username"), json.getString("secret"),
+                            json.has("server_id") ? json.getString("server_id") : null,
+                            json.has("msg_id") ? json.getLong("msg_id") : MessageIdCache.NO_ID, json.getFrame());
 
-                    // check that connection doesn't belong to a server
-                    if (processCon.isServer()) {
-                        String error = "not a client";
-                        return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
-                    }
+                    break;
+                }
 
-                    // check that not already logged in
-                    if (processCon.isLoggedIn()) {
-                        String error = "register message received from client already logged in";
-                        return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
+                case "LOCK_BATCH": {
+
+                    // same as receiving each lock message in turn, except none of them can be forwarded unchanged
+                    JSONArray locks = json.getJSONArray("locks");
+                    int duplicates = 0;
+                    for (int i = 0; i < locks.length(); i++) {
+                        JSONObject lock = locks.getJSONObject(i);
+                        String lockCommand = lock.getString("command");
+                        if (!lockCommand.equals("LOCK_REQUEST") && !lockCommand.equals("LOCK_DENIED") &&
+                                !lockCommand.equals("LOCK_ALLOWED")) {
+                            String error = "unknown command in lock batch";
+                            return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error + " : " + lockCommand);
+                        }
+                        long msgId = lock.has("msg_id") ? lock.getLong("msg_id") : MessageIdCache.NO_ID;
+                        if (msgId != MessageIdCache.NO_ID && !messageIds.add(msgId)) {
+                            duplicates++;
+                            continue;
+                        }
+                        dispatchRegistration(processCon, lockCommand, lock.getString("username"), lock.getString("secret"),
+                                lock.optString("server_id", null), msgId, null);
                     }
+                    log.info("LOCK_BATCH - received " + locks.length() + " lock messages, " + duplicates + " already seen");
 
-                    // count number of current other servers (since lock_allowed has no server_id)
-                    // and no servers quit or crash
-                    int currentServerCount = serverList.size();
+                    break;
+                }
 
-                    if (currentServerCount == 0) {
-                        registerSuccessfulUser(processCon, username, secret);
-                        return false;
-                    }
+                default: {
+                    String error = "unknown command";
+                    return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error+" : "+command);
+                }
+            }
 
-                    // add username to registration pool
-                    addToRegistrationPool(processCon, username, secret, currentServerCount);
+        } catch (JSONException e) {
 
-                    // also add username/secret to local storage first (as per Aaron's test server behaviour)
-                    addUser(username, secret);
+            // catches all malformed messages
+            String error = "JSON parse exception : " + e.getMessage();
+            return processCon.termConnection(JsonCreator.invalidMessage(error), "ERROR - " + error);
+        }
 
-                    // send out lock request
-                    String lockRequest = JsonCreator.lockRequest(username, secret);
-                    broadcastToServers(processCon, lockRequest, false);
-                    log.info("REGISTER - lock request broadcast");
+        return false;
+    }
 
-                    // replies from other servers will be processed when lock_allowed and lock_denied msgs arrive
+    /**
+     * Hand a registration or lock message to its username's stripe
+     */
+    private void dispatchRegistration(final Connection con, final String command, final String username,
+                                      final String secret, final String serverId, final long msgId,
+                                      final Frame frame) {
+        registrationExecutor.execute(username, new Runnable() {
+            @Override
+            public void run() {
+                if (processRegistration(con, command, username, secret, serverId, msgId, frame)) {
+                    con.closeCon();
+                }
+            }
+        });
+    }
 
-                    break;
+    /**
+     * Run a client's REGISTER on its username's stripe, ordered with that username's lock messages. The
+     * connection's later lines are held until it's done rather than waiting for it here, which would stall
+     * an event loop or pipeline worker shared with other connections.
+     *
+     * @return true if connection should terminate, only if the REGISTER couldn't be run
+     */
+    private boolean registerClient(final Connection con, final String username, final String secret,
+                                   final Frame frame) {
+        con.hold();
+        boolean accepted = registrationExecutor.execute(username, new Runnable() {
+            @Override
+            public void run() {
+                boolean close = true;
+                try {
+                    close = processRegistration(con, "REGISTER", username, secret, null, MessageIdCache.NO_ID,
+                            frame);
+                } finally {
+                    con.registered(close);
                 }
+            }
+        });
+        if (!accepted) {
+            con.resumeHeld();
+            con.resumeReading(null);
+            return true;
+        }
+        return false;
+    }
 
-                case "LOCK_REQUEST": {
+    /**
+     * Registration and lock protocol messages, always run on the stripe for the message's username
+     *
+     * @param processCon connection receiving message
+     * @param json       indexed message, forwarded from its frame unchanged
+     * @return true if connection should terminate based on message
+     */
+    boolean processRegistration(Connection processCon, Envelope json) {
+        try {
+            return processRegistration(processCon, json.getCommand(), json.getString("username"),
+                    json.getString("secret"), json.has("server_id") ? json.getString("server_id") : null,
+                    json.has("msg_id") ? json.getLong("msg_id") : MessageIdCache.NO_ID, json.getFrame());
+        } catch (JSONException e) {
 
-                    // validate first
-                    String username = json.getString("username");
-                    String secret = json.getString("secret");
+            // catches all malformed messages
+            String error = "JSON parse exception : " + e.getMessage();
+            return processCon.termConnection(JsonCreator.invalidMessage(error), "ERROR - " + error);
+        }
+    }
 
-                    // check that sender server is authenticated
-                    if (!processCon.isLoggedIn() || !processCon.isServer()) {
-                        String error = "server not authenticated";
-                        return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
-                    }
+    /**
+     * Registration and lock protocol messages, always run on the stripe for the username
+     *
+     * @param processCon connection receiving message
+     * @param command    REGISTER or a lock command
+     * @param username   username
+     * @param secret     secret
+     * @param serverId   server which sent a LOCK_ALLOWED, null if it didn't say
+     * @param msgId      id the lock message was first sent with, or NO_ID
+     * @param frame      message as received to forward unchanged, null if it arrived in a LOCK_BATCH
+     * @return true if connection should terminate based on message
+     */
+    boolean processRegistration(Connection processCon, String command, String username, String secret, String serverId,
+                                long msgId, Frame frame) {
 
-                    // forward the lock request
-                    int result = broadcastToServers(processCon, json.toString(), false);
-                    log.info("LOCK_REQUEST - forwarded to " + result + " servers");
-
-                    // check if username is known and generate broadcast for denied or allowed
-                    // theoretically if denied then don't even need to bother to forward lock request
-                    String storedSecret = getSecretForUser(username);
-                    if (!userExists(username)) {
-                        String lockAllowed = JsonCreator.lockAllowed(username, secret);
-                        for (Connection connection : connections) {
-                            if (connection.isServer() && connection.isLoggedIn()) {
-                                connection.writeMsg(lockAllowed);
-                                addUser(username, secret);
-                            }
-                        }
-                        log.info("LOCK_REQUEST - broadcast LOCK_ALLOWED in response");
-                    } else {
-                        // send LOCK_DENIED if username known regardless of secret (as per discussion board)
-                        String lockDenied = JsonCreator.lockDenied(username, secret);
-                        for (Connection connection : connections) {
-                            if (connection.isServer() && connection.isLoggedIn()) {
-                                connection.writeMsg(lockDenied);
-                            }
-                        }
-                        log.info("LOCK_REQUEST - broadcast LOCK_DENIED in response");
-                    }
+        switch (command) {
+            case "REGISTER": {
 
-                    break;
+                log.info("REGISTER - attempting registration for " + username + " with secret " + secret);
+
+
+                // check that username isn't null
+                if (username == null) {
+                    String error = "null username";
+                    return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
                 }
 
-                case "LOCK_DENIED": {
+                // check that the username isn't already in storage
+                if (userExists(username)) {
+                    String error = "username " + username + " already registered";
+                    return processCon.termConnection(JsonCreator.registerFailed(error), "REGISTER_FAILED - " + error);
+                }
 
-                    // validate
-                    String username = json.getString("username");
-                    String secret = json.getString("secret");
+                // check that secret isn't null
+                if (secret == null) {
+                    String error = "null secret";
+                    return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
+                }
 
-                    // check that sending server authenticated
-                    if (!processCon.isLoggedIn() || !processCon.isServer()) {
-                        String error = "server not authenticated";
-                        return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
-                    }
+                // check that connection doesn't belong to a server
+                if (processCon.isServer()) {
+                    String error = "not a client";
+                    return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
+                }
 
-                    // remove username from local storage
-                    removeUser(username);
-
-                    // forward to other servers
-                    int result = broadcastToServers(processCon, json.toString(), false);
-                    log.info("LOCK_DENIED - forwarded to " + result + " servers");
-
-                    // if is the server originating the request, send denied, close connection, and remove pending rego
-                    Registration rego = getRegistrationFromPool(username);
-                    if (rego != null) {
-                        log.info("REGISTER_FAILED for "+username+ ", already registered in the system");
-                        String error = username + " already registered in the system";
-                        Connection clientConnection = rego.getConnection();
-                        clientConnection.writeMsg(JsonCreator.registerFailed(error));
-                        clientConnection.closeCon();
-                        removeRegistrationFromPool(username);
-                    }
+                // check that not already logged in
+                if (processCon.isLoggedIn()) {
+                    String error = "register message received from client already logged in";
+                    return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
+                }
 
-                    break;
+                // wait for every server currently believed alive, failed ones are dropped from the wait later
+                Set<String> currentServers = new HashSet<>(serverList.keySet());
 
+                if (currentServers.isEmpty()) {
+                    registerSuccessfulUser(processCon, username, secret);
+                    return false;
                 }
 
-                case "LOCK_ALLOWED": {
+                // add username to registration pool
+                addToRegistrationPool(processCon, username, secret, currentServers);
 
-                    // validate
-                    String username = json.getString("username");
-                    String secret = json.getString("secret");
+                // also add username/secret to local storage first (as per Aaron's test server behaviour)
+                addUser(username, secret);
 
+                // send out lock request
+                long requestId = newMessageId();
+                forwardLock(processCon, "LOCK_REQUEST", username, secret, null, requestId,
+                        JsonCreator.lockRequest(username, secret, requestId));
+                log.info("REGISTER - lock request broadcast");
 
-                    // check that sending server authenticated
-                    if (!processCon.isLoggedIn() || !processCon.isServer()) {
-                        String error = "server not authenticated";
-                        return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
-                    }
+                // replies from other servers will be processed when lock_allowed and lock_denied msgs arrive
 
-                    // forward to other servers
-                    int result = broadcastToServers(processCon, json.toString(), false);
-                    log.info("LOCK_ALLOWED - forwarded to " + result + " servers");
-
-                    // if is the server originating the request, decrement the count
-                    Registration rego = getRegistrationFromPool(username);
-                    if (rego != null) {
-                        if (rego.getUsername().equals(username) && rego.getSecret().equals(secret)) {
-                            int latestCount = rego.decrementAndGetAllowsNeeded();
-                            log.info("REGISTER status for " + username +
-                                    " : waiting for " + latestCount + " more LOCK_ALLOWED");
-
-                            // if not waiting for anymore results, add user to list
-                            if (latestCount == 0) {
-                                registerSuccessfulUser(rego.getConnection(), rego.getUsername(), rego.getSecret());
-                                return false;
-                            }
-                        }
+                break;
+            }
+
+            case "LOCK_REQUEST": {
+
+                // validate first
+
+                // check that sender server is authenticated
+                if (!processCon.isLoggedIn() || !processCon.isServer()) {
+                    String error = "server not authenticated";
+                    return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
+                }
+
+                // forward the lock request
+                int result = forwardLock(processCon, command, username, secret, serverId, msgId, frame);
+                log.info("LOCK_REQUEST - forwarded to " + result + " servers");
+
+                // check if username is known and generate broadcast for denied or allowed
+                // theoretically if denied then don't even need to bother to forward lock request
+                String storedSecret = getSecretForUser(username);
+                if (!userExists(username)) {
+                    long allowedId = newMessageId();
+                    Frame lockAllowed = JsonCreator.lockAllowed(username, secret, Settings.getServerId(), allowedId);
+                    for (Connection connection : connections.servers()) {
+                        connection.sendLock("LOCK_ALLOWED", username, secret, Settings.getServerId(), allowedId, lockAllowed);
+                        addUser(username, secret);
                     }
+                    log.info("LOCK_REQUEST - broadcast LOCK_ALLOWED in response");
+                } else {
+                    // send LOCK_DENIED if username known regardless of secret (as per discussion board)
+                    long deniedId = newMessageId();
+                    Frame lockDenied = JsonCreator.lockDenied(username, secret, deniedId);
+                    for (Connection connection : connections.servers()) {
+                        connection.sendLock("LOCK_DENIED", username, secret, null, deniedId, lockDenied);
+                    }
+                    log.info("LOCK_REQUEST - broadcast LOCK_DENIED in response");
+                }
 
-                    break;
+                break;
+            }
+
+            case "LOCK_DENIED": {
+
+                // validate
+
+                // check that sending server authenticated
+                if (!processCon.isLoggedIn() || !processCon.isServer()) {
+                    String error = "server not authenticated";
+                    return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
                 }
 
-                default: {
-                    String error = "unknown command";
-                    return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error+" : "+command);
+                // remove username from local storage
+                removeUser(username);
+
+                // forward to other servers
+                int result = forwardLock(processCon, command, username, secret, serverId, msgId, frame);
+                log.info("LOCK_DENIED - forwarded to " + result + " servers");
+
+                // if is the server originating the request, send denied, close connection, and remove pending rego
+                Registration rego = getRegistrationFromPool(username);
+                if (rego != null) {
+                    log.info("REGISTER_FAILED for "+username+ ", already registered in the system");
+                    String error = username + " already registered in the system";
+                    Connection clientConnection = rego.getConnection();
+                    clientConnection.writeFrame(JsonCreator.registerFailed(error));
+                    clientConnection.closeCon();
+                    removeRegistrationFromPool(username);
                 }
+
+                break;
+
             }
 
-        } catch (JSONException e) {
+            case "LOCK_ALLOWED": {
 
-            // catches all malformed messages
-            String error = "JSON parse exception : " + e.getMessage();
-            return processCon.termConnection(JsonCreator.invalidMessage(error), "ERROR - " + error);
+                // validate
+
+
+                // check that sending server authenticated
+                if (!processCon.isLoggedIn() || !processCon.isServer()) {
+                    String error = "server not authenticated";
+                    return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error);
+                }
+
+                // forward to other servers
+                int result = forwardLock(processCon, command, username, secret, serverId, msgId, frame);
+                log.info("LOCK_ALLOWED - forwarded to " + result + " servers");
+
+                // if is the server originating the request, decrement the count
+                Registration rego = getRegistrationFromPool(username);
+                if (rego != null) {
+                    if (rego.getUsername().equals(username) && rego.getSecret().equals(secret)) {
+                        int latestCount = rego.allowed(serverId);
+                        log.info("REGISTER status for " + username +
+                                " : waiting for " + latestCount + " more LOCK_ALLOWED");
+
+                        // if not waiting for anymore results, add user to list
+                        if (latestCount == 0) {
+                            removeRegistrationFromPool(username);
+                            registerSuccessfulUser(rego.getConnection(), rego.getUsername(), rego.getSecret());
+                            return false;
+                        }
+                    }
+                }
+
+                break;
+            }
+
+            default: {
+                String error = "unknown command";
+                return processCon.termConnection(JsonCreator.invalidMessage(error), "INVALID_MESSAGE - " + error+" : "+command);
+            }
         }
 
         return false;
     }
 
 
+    /**
+     * Gauges read whenever metrics are exposed
+     */
+    private void registerGauges() {
+        Metrics.gauge("connections", "type=\"client\"", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return countConnections(Metrics.Peer.CLIENT);
+            }
+        });
+        Metrics.gauge("connections", "type=\"server\"", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return countConnections(Metrics.Peer.SERVER);
+            }
+        });
+        Metrics.gauge("connections", "type=\"unknown\"", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return countConnections(Metrics.Peer.UNKNOWN);
+            }
+        });
+        Metrics.gauge("load", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return currentLoad.get();
+            }
+        });
+        Metrics.gauge("known_servers", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return serverList.size();
+            }
+        });
+        Metrics.gauge("suspected_servers", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return suspectedServers.size();
+            }
+        });
+        Metrics.gauge("failure_detector_max_phi", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return (long) maxPhi;
+            }
+        });
+        Metrics.gauge("dedup_duplicates", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return messageIds.getDuplicates();
+            }
+        });
+        Metrics.gauge("dedup_evictions", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return messageIds.getEvictions();
+            }
+        });
+        if (replay != null) {
+            Metrics.gauge("replay_retained_bytes", null, new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    synchronized (replay) {
+                        return replay.retainedBytes();
+                    }
+                }
+            });
+            Metrics.gauge("replay_retained_broadcasts", null, new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    synchronized (replay) {
+                        return replay.nextSeq() - replay.oldestSeq();
+                    }
+                }
+            });
+        }
+        if (journal != null) {
+            Metrics.gauge("journal_segments", null, new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return journal.getSegments();
+                }
+            });
+            Metrics.gauge("journal_queue_depth", null, new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return journal.getQueueDepth();
+                }
+            });
+            Metrics.gauge("journal_dropped", null, new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return journal.getDropped();
+                }
+            });
+        }
+        Metrics.gauge("subscribed_clients", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return connections.countSubscribed();
+            }
+        });
+        Metrics.gauge("subscription_keys", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return subscriptions.size();
+            }
+        });
+        Metrics.gauge("activities_not_forwarded", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return notForwarded.get();
+            }
+        });
+        Metrics.gauge("registered_users", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return users.size();
+            }
+        });
+        Metrics.gauge("registration_pool_size", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return registrationPool.size();
+            }
+        });
+        Metrics.gauge("timers_pending", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return timer.getPending();
+            }
+        });
+        Metrics.gauge("registration_queue_depth", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return registrationExecutor.getQueueDepth();
+            }
+        });
+        Metrics.gauge("outbound_queued_bytes", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                long total = 0;
+                for (Connection connection : connections.all()) {
+                    total += connection.getQueuedBytes();
+                }
+                return total;
+            }
+        });
+        Metrics.gauge("outbound_queued_bytes_max", null, new Metrics.Gauge() {
+            @Override
+            public long value() {
+                long max = 0;
+                for (Connection connection : connections.all()) {
+                    max = Math.max(max, connection.getQueuedBytes());
+                }
+                return max;
+            }
+        });
+        if (pipeline != null) {
+            for (final Settings.Stage stage : Settings.Stage.values()) {
+                Metrics.gauge("pipeline_queue_depth", "stage=\"" + stage.name().toLowerCase() + "\"",
+                        new Metrics.Gauge() {
+                            @Override
+                            public long value() {
+                                return pipeline.getQueueDepth(stage);
+                            }
+                        });
+            }
+        }
+    }
+
+    private static int countConnections(Metrics.Peer peer) {
+        return connections.count(peer);
+    }
+
+
     // CONNECTION RELATED UTILITY METHODS
 
+    // Track a connection once its transport has been set up
+    public void connectionOpened(Connection con) {
+        connections.add(con);
+        if (Settings.getIdleTimeout() > 0) {
+            watchIdle(con, Settings.getIdleTimeout());
+        }
+    }
+
+    // Move a connection between indexes once it has authenticated or logged in
+    public void connectionUpdated(Connection con) {
+        connections.update(con);
+    }
+
     // Cleanup after a connection has been closed
     public void connectionClosed(Connection con) {
         connections.remove(con);
+        subscriptions.remove(con);
+        if (con.isServer() && con.routesKnown) {
+            // origins reached through it will be heard from on other links by the next announces
+            routes.unsettle(2L * Settings.getActivityInterval());
+        }
+        HashedWheelTimer.Timeout idleCheck = con.getIdleCheck();
+        if (idleCheck != null) {
+            idleCheck.cancel();
+        }
+    }
+
+    /**
+     * Check a connection for idleness after a delay. Rather than rescheduling on every message received, the
+     * check compares the last receive time and only reschedules for whatever remains of the idle timeout.
+     *
+     * @param con   connection to watch
+     * @param delay milliseconds until the check
+     */
+    private void watchIdle(final Connection con, long delay) {
+        con.setIdleCheck(timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - con.getLastReceived());
+                if (idle < Settings.getIdleTimeout()) {
+                    watchIdle(con, Settings.getIdleTimeout() - idle);
+                } else {
+                    log.info("INFO - closing connection " + Settings.socketAddress(con.getSocket()) +
+                            ", nothing received for " + idle + " ms");
+                    // likely half open, don't wait to flush anything to it
+                    con.abort();
+                }
+            }
+        }, delay));
     }
 
     /**
@@ -466,8 +1032,9 @@ public class Control extends Thread {
      */
     public Connection incomingConnection(Socket s) throws IOException {
         log.debug("DEBUG - incoming connection : " + Settings.socketAddress(s));
-        Connection c = new Connection(s, false);
-        connections.add(c);
+        BlockingConnection c = new BlockingConnection(s, false);
+        connectionOpened(c);
+        c.start();
         return c;
     }
 
@@ -480,8 +1047,9 @@ public class Control extends Thread {
      */
     public Connection outgoingConnection(Socket s) throws IOException {
         log.debug("DEBUG - outgoing connection: " + Settings.socketAddress(s));
-        Connection c = new Connection(s, true);
-        connections.add(c);
+        BlockingConnection c = new BlockingConnection(s, true);
+        connectionOpened(c);
+        c.start();
         return c;
 
     }
@@ -489,50 +1057,350 @@ public class Control extends Thread {
 
     // OTHER UTILITY METHODS
 
+    /**
+     * Encode and queue a routed message on its recipients, on the pipeline's encode stage if there is one
+     *
+     * @param processCon connection which received the message, keeps fan-out in order per source
+     * @param task       encodes the message and writes it to each recipient
+     */
+    private void fanOut(Connection processCon, FanOut task) {
+        if (pipeline != null) {
+            pipeline.encode(processCon, task);
+        } else {
+            task.run();
+        }
+    }
+
     /**
      * Simple way to broadcast to all logged in client/server connections
      *
      * @param processCon connection which received message triggering broadcast
-     * @param broadcast  string to be broadcast
+     * @param broadcast  frame to be broadcast, encoded once and shared by every recipient
+     * @param msgId      id the broadcast was sent with, or NO_ID
+     * @param keys       subscription keys the broadcast matches, from subscriptionKeys
      * @return pair of counts of servers & clients successfully sent to
      */
-    private Pair<Integer, Integer> broadcastToAll(Connection processCon, String broadcast, boolean includeSender) {
+    Pair<Integer, Integer> broadcastToAll(Connection processCon, Frame broadcast, boolean includeSender, long msgId,
+                                          List<String> keys) {
+
+        // only queued here, written in batches by the journal's own thread
+        if (journal != null) {
+            journal.append(broadcast);
+        }
 
         int serverCount = 0;
-        int clientCount = 0;
 
         // forward to all other authenticated connections (connection has already validated info)
-        for (Connection connection : connections) {
-            if ((includeSender || connection != processCon) && connection.isLoggedIn()) {
-                if (connection.writeMsg(broadcast)) {
-                    if (connection.isClient()) {
-                        clientCount++;
-                    } else if (connection.isServer()) {
-                        serverCount++;
+        // unless no server behind them has a client for it
+        long[] hashes = InterestRoutes.hash(keys);
+        for (Connection connection : connections.servers()) {
+            if (!includeSender && connection == processCon) {
+                continue;
+            }
+            if (!routes.wants(connection, hashes)) {
+                notForwarded.incrementAndGet();
+            } else if (connection.writeFrame(broadcast)) {
+                serverCount++;
+            }
+        }
+        if (replay == null) {
+            return new Pair<>(serverCount, broadcastToClients(processCon, broadcast, includeSender, keys));
+        }
+        // numbered and queued under the ring's lock, so every client is sent broadcasts in sequence order
+        // and one logging in gets exactly those before its first live one
+        synchronized (replay) {
+            Frame sequenced = replay.append(broadcast, msgId);
+            return new Pair<>(serverCount, broadcastToClients(processCon, sequenced, includeSender, keys));
+        }
+    }
+
+    /**
+     * Send to every client without subscriptions, and to subscribed clients only through the keys matched
+     */
+    private int broadcastToClients(Connection processCon, Frame broadcast, boolean includeSender, List<String> keys) {
+        // copied once, so a client matching several keys, or moving between receiving everything and
+        // subscribing while this runs, is sent the broadcast once
+        Set<Connection> matched = null;
+        for (String key : keys) {
+            Set<Connection> subscribers = subscriptions.subscribers(key);
+            if (subscribers == null) {
+                continue;
+            }
+            if (matched == null) {
+                matched = new HashSet<>(subscribers);
+            } else {
+                matched.addAll(subscribers);
+            }
+        }
+
+        int count = 0;
+        for (Connection connection : connections.clients()) {
+            if (matched != null && matched.contains(connection)) {
+                continue;
+            }
+            if ((includeSender || connection != processCon) && connection.writeFrame(broadcast)) {
+                count++;
+            }
+        }
+        if (matched == null) {
+            return count;
+        }
+        for (Connection connection : matched) {
+            if ((includeSender || connection != processCon) && connection.writeFrame(broadcast)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Subscription keys an activity matches, its author and its tags, nothing if neither a client here nor
+     * another server filters by them and tags only if something might filter by a tag. A relayed activity
+     * is forwarded as received, so an authenticated_user or tags of the wrong type are skipped rather than
+     * failing the message.
+     *
+     * @param user    authenticated_user of the activity, or null to read it from the activity
+     * @param message message carrying the activity, with optional "tags" array of strings, which is only
+     *                indexed if something filters
+     * @return keys to look subscribers and interested servers up by
+     */
+    List<String> subscriptionKeys(String user, Envelope message) {
+        boolean routing = routes.isFiltering();
+        if (subscriptions.isEmpty() && !routing) {
+            return Collections.emptyList();
+        }
+        Envelope activity = message.getObject("activity");
+        List<String> keys = new ArrayList<>();
+        if (user == null && activity.has("authenticated_user")) {
+            try {
+                user = activity.getString("authenticated_user");
+            } catch (JSONException e) {
+                log.debug("DEBUG - activity authenticated_user isn't a string : " + e.getMessage());
+            }
+        }
+        if (user != null) {
+            keys.add(SubscriptionIndex.userKey(user));
+        }
+        if ((routing || subscriptions.hasTags()) && activity.has("tags")) {
+            JSONArray tags;
+            try {
+                tags = activity.getJSONArray("tags");
+            } catch (JSONException e) {
+                log.debug("DEBUG - activity tags aren't an array : " + e.getMessage());
+                return keys;
+            }
+            for (int i = 0; i < tags.length(); i++) {
+                Object tag = tags.opt(i);
+                if (tag instanceof String) {
+                    keys.add(SubscriptionIndex.tagKey((String) tag));
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Summary of what this server's clients want for other servers to route activities by, everything while
+     * any client receives every broadcast or broadcasts are kept for replay or the journal, otherwise a
+     * filter of subscription keys
+     */
+    private static BloomFilter localInterest() {
+        if (replay != null || journal != null ||
+                connections.count(Metrics.Peer.CLIENT) > connections.countSubscribed()) {
+            return BloomFilter.EVERYTHING;
+        }
+        return BloomFilter.of(new ArrayList<>(subscriptions.keys()));
+    }
+
+    /**
+     * Announce straight away, rather than at the next interval, when clients here now want activities the
+     * last announce didn't cover, so other servers start forwarding them. Narrowing waits for the interval.
+     *
+     * @param added keys just subscribed to
+     */
+    private void checkInterestWidened(List<String> added) {
+        BloomFilter announced = announcedInterest;
+        if (announced == null || announced.isEverything()) {
+            return;
+        }
+        boolean widened = connections.count(Metrics.Peer.CLIENT) > connections.countSubscribed();
+        for (int i = 0; i < added.size() && !widened; i++) {
+            widened = !announced.mightContain(added.get(i));
+        }
+        if (widened && announcePending.compareAndSet(false, true)) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    announcePending.set(false);
+                    if (!term) {
+                        doActivity();
                     }
                 }
+            }, 1);
+        }
+    }
+
+    /**
+     * Add to or remove from a client's subscriptions. A client with none is sent every broadcast, once it
+     * has any it is only sent broadcasts by the users or with the tags it subscribed to.
+     *
+     * @param con       client connection
+     * @param request   SUBSCRIBE or UNSUBSCRIBE, with "users" and/or "tags" arrays of strings
+     * @param subscribe true to add, false to remove
+     * @return true if the connection was terminated over an invalid request
+     */
+    boolean subscribe(Connection con, Envelope request, boolean subscribe) throws JSONException {
+        List<String> keys = new ArrayList<>();
+        if (request.has("users")) {
+            JSONArray users = request.getJSONArray("users");
+            for (int i = 0; i < users.length(); i++) {
+                keys.add(SubscriptionIndex.userKey(users.getString(i)));
+            }
+        }
+        if (request.has("tags")) {
+            JSONArray tags = request.getJSONArray("tags");
+            for (int i = 0; i < tags.length(); i++) {
+                keys.add(SubscriptionIndex.tagKey(tags.getString(i)));
+            }
+        }
+        String command = request.getCommand();
+        if (keys.isEmpty()) {
+            String error = "no users or tags given";
+            return con.termConnection(JsonCreator.invalidMessage(error), command + " - " + error);
+        }
+
+        int subscribed;
+        if (subscribe) {
+            subscribed = subscriptions.subscribe(con, keys);
+            if (subscribed > MAX_SUBSCRIPTIONS) {
+                subscriptions.unsubscribe(con, keys);
+                String error = "more than " + MAX_SUBSCRIPTIONS + " subscriptions";
+                return con.termConnection(JsonCreator.invalidMessage(error), command + " - " + error);
+            }
+        } else {
+            subscribed = subscriptions.unsubscribe(con, keys);
+        }
+        // out of the receive all set only once reachable through the index, so nothing is missed meanwhile
+        connections.setSubscribed(con, subscribed > 0);
+        checkInterestWidened(subscribe ? keys : Collections.<String>emptyList());
+        log.info(command + " - client " + con.getClientId() + " now subscribed to " + subscribed + " users and tags");
+        return false;
+    }
+
+    /**
+     * Reply to a successful LOGIN and start sending the client broadcasts. With replay on the client is
+     * told the sequence number broadcasts continue from, and if it asks to resume it is first sent those it
+     * missed that are still kept, as much as fits under the outbound high water mark.
+     *
+     * @param con   client connection
+     * @param info  LOGIN_SUCCESS info
+     * @param login LOGIN message, with resume_from a sequence number here or resume_after the msg_id of the
+     *              last broadcast seen on any server
+     */
+    void clientLoggedIn(Connection con, String info, Envelope login) throws JSONException {
+        if (replay == null) {
+            con.writeFrame(JsonCreator.loginSuccess(info));
+            connectionUpdated(con);
+            checkInterestWidened(Collections.<String>emptyList());
+            return;
+        }
+        boolean resumeFrom = login.has("resume_from");
+        boolean resume = resumeFrom || login.has("resume_after");
+        long resumeAt = resumeFrom ? login.getLong("resume_from") : resume ? login.getLong("resume_after") : 0;
+        // every broadcast takes this lock, so only lookups and the bounded copy are done under it
+        synchronized (replay) {
+            long next = replay.nextSeq();
+            long first = next;
+            if (resume) {
+                long from = resumeFrom ? resumeAt : replay.after(resumeAt);
+                first = replay.firstReplayable(from, Settings.getOutboundHighWater() / 2);
+            }
+            con.writeFrame(JsonCreator.loginSuccess(info, next, resume ? first : -1));
+            for (long seq = first; seq < next; seq++) {
+                con.writeFrame(replay.get(seq));
+            }
+            connectionUpdated(con);
+            if (resume) {
+                log.info("LOGIN - replayed " + (next - first) + " broadcasts from " + first);
             }
         }
-        return new Pair<>(serverCount, clientCount);
+        checkInterestWidened(Collections.<String>emptyList());
+    }
+
+    /**
+     * Reply to HISTORY with the requested user's journalled activities, newest first, as HISTORY_ITEMs
+     * followed by a HISTORY_END carrying the cursor for the next page
+     *
+     * @param con     client connection
+     * @param request HISTORY message, with user and optionally since, until, limit and before
+     * @return true if the connection was terminated over an invalid request
+     */
+    boolean history(Connection con, Envelope request) throws JSONException {
+        if (journal == null) {
+            con.writeFrame(JsonCreator.historyEnd(0, -1, "activity history is not kept on this server"));
+            return false;
+        }
+        String user = request.getString("user");
+        long since = request.has("since") ? request.getLong("since") : 0;
+        long until = request.has("until") ? request.getLong("until") : Long.MAX_VALUE;
+        int limit = request.has("limit") ? Math.max(1, Math.min(request.getInt("limit"), MAX_HISTORY_PAGE))
+                : MAX_HISTORY_PAGE;
+        long before = request.has("before") ? request.getLong("before") : -1;
+
+        ActivityJournal.Page page;
+        try {
+            page = journal.query(user, since, until, limit, before);
+        } catch (IllegalArgumentException e) {
+            return con.termConnection(JsonCreator.invalidMessage("invalid history cursor"),
+                    "HISTORY - " + e.getMessage());
+        }
+        for (Frame item : page.items) {
+            con.writeFrame(item);
+        }
+        con.writeFrame(JsonCreator.historyEnd(page.items.size(), page.next, null));
+        log.info("HISTORY - sent " + page.items.size() + " activities by " + user);
+        return false;
     }
 
     /**
      * Simple way to broadcast to all logged in server connections
      *
      * @param processCon connection which received message triggering broadcast
-     * @param broadcast  string to be broadcast
+     * @param broadcast  frame to be broadcast, encoded once and shared by every recipient
      * @return counts of servers successfully sent to
      */
-    private int broadcastToServers(Connection processCon, String broadcast, boolean includeSender) {
+    int broadcastToServers(Connection processCon, Frame broadcast, boolean includeSender) {
 
         int count = 0;
 
         // forward to all other servers (connection has already validated info)
-        for (Connection connection : connections) {
-            if (connection.isServer() && (includeSender || connection != processCon) && connection.isLoggedIn()) {
-                if (connection.writeMsg(broadcast)) {
-                    count++;
-                }
+        for (Connection connection : connections.servers()) {
+            if ((includeSender || connection != processCon) && connection.writeFrame(broadcast)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Forward a lock message to every other authenticated server, batched for servers which accepted that
+     *
+     * @param processCon connection the message came from, not forwarded back to it
+     * @param command    lock command
+     * @param username   username
+     * @param secret     secret
+     * @param serverId   server which sent a LOCK_ALLOWED, or null
+     * @param msgId      id the message was first sent with, or NO_ID
+     * @param frame      message already encoded, or null to encode it for any server that needs it
+     * @return number of servers forwarded to
+     */
+    private int forwardLock(Connection processCon, String command, String username, String secret, String serverId,
+                            long msgId, Frame frame) {
+        int count = 0;
+        for (Connection connection : connections.servers()) {
+            if (connection != processCon && connection.sendLock(command, username, secret, serverId, msgId, frame)) {
+                count++;
             }
         }
         return count;
@@ -548,7 +1416,7 @@ public class Control extends Thread {
      * @param secret   secret string
      */
     private void addUser(String username, String secret) {
-        userList.put(username, secret);
+        users.put(username, secret);
     }
 
     /**
@@ -562,7 +1430,7 @@ public class Control extends Thread {
         addUser(username, secret);
         if (connection != null) {
             String message = "register success for " + username;
-            connection.writeMsg(JsonCreator.registerSuccess(message));
+            connection.writeFrame(JsonCreator.registerSuccess(message));
             log.info("REGISTER_SUCCESS - " + message);
         }
     }
@@ -574,24 +1442,68 @@ public class Control extends Thread {
      */
     private void removeUser(String user) {
         if (user != null) {
-            userList.remove(user);
+            users.remove(user);
         }
     }
 
     public static boolean userExists(String user) {
-        return user != null && userList.containsKey(user);
+        return user != null && users.contains(user);
+    }
+
+    /**
+     * @param user    username
+     * @param message message with the secret to check in its secret member
+     * @return true if the user is registered with that secret
+     * @throws JSONException if the message has no secret
+     */
+    public static boolean checkSecret(String user, Envelope message) throws JSONException {
+        return user != null && users.checkSecret(user, message, "secret");
     }
 
     public static String getSecretForUser(String user) {
         if (user == null) {
             return null;
         } else {
-            return userList.get(user);
+            return users.getSecret(user);
         }
     }
 
-    public static void addToRegistrationPool(Connection con, String username, String secret, int currentServerCount) {
-        registrationPool.put(username, new Registration(con, username, secret, currentServerCount));
+    /**
+     * Track a registration waiting for lock replies, failing it if they don't all arrive in time
+     */
+    public static void addToRegistrationPool(Connection con, final String username, String secret, Set<String> serverIds) {
+        final Registration rego = new Registration(con, username, secret, serverIds);
+        registrationPool.put(username, rego);
+        rego.setTimeout(timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // on the username's stripe so it can't interleave with the lock replies
+                registrationExecutor.execute(username, new Runnable() {
+                    @Override
+                    public void run() {
+                        expireRegistration(rego);
+                    }
+                });
+            }
+        }, Settings.getRegistrationTimeout()));
+    }
+
+    /**
+     * Fail a registration which didn't get every lock reply in time, eg. because a server left
+     */
+    private static void expireRegistration(Registration rego) {
+        String username = rego.getUsername();
+        // the timeout can fire just before the last reply or a server failure completes the registration, and
+        // it may have been replaced by a newer attempt at the same username, either way it's already answered
+        if (!registrationPool.remove(username, rego)) {
+            return;
+        }
+        users.remove(username);
+        String error = "registration for " + username + " timed out waiting for other servers";
+        log.info("REGISTER_FAILED - " + error);
+        Connection clientConnection = rego.getConnection();
+        clientConnection.writeFrame(JsonCreator.registerFailed(error));
+        clientConnection.closeCon();
     }
 
     public static boolean checkRegistrationPoolForUser(String username) {
@@ -613,7 +1525,10 @@ public class Control extends Thread {
 
     public static void removeRegistrationFromPool(String username) {
         if (username != null) {
-            registrationPool.remove(username);
+            Registration rego = registrationPool.remove(username);
+            if (rego != null) {
+                rego.cancelTimeout();
+            }
         }
     }
 
@@ -643,15 +1558,194 @@ public class Control extends Thread {
         currentLoad.decrementAndGet();
     }
 
-    public final CopyOnWriteArrayList<Connection> getConnections() {
+    public final ConnectionIndex getConnections() {
         return connections;
     }
 
+    /**
+     * @return timer ticked by the control loop, for timeouts and delayed tasks
+     */
+    static HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * @return staged pipeline, or null if connections process messages inline
+     */
+    public static Pipeline getPipeline() {
+        return pipeline;
+    }
+
     public static ConcurrentHashMap<String, ServerData> getServerList() {
         return serverList;
     }
 
-    private class Pair<A,B>{
+    /**
+     * Id for a server message originating here, remembered so the message is dropped if it comes back
+     */
+    private static long newMessageId() {
+        long id;
+        do {
+            // the mixer is a bijection, so ids are unique here and look random across servers
+            id = MessageIdCache.mix(messageSequence.getAndIncrement());
+        } while (id == MessageIdCache.NO_ID);
+        messageIds.add(id);
+        return id;
+    }
+
+    /**
+     * @return true if a server sent a message already received by another path, which has been handled and
+     * forwarded then so should be dropped
+     */
+    private static boolean seenBefore(Connection con, String command, Envelope json) throws JSONException {
+        if (!con.isServer() || !json.has("msg_id") || messageIds.add(json.getLong("msg_id"))) {
+            return false;
+        }
+        log.debug("DEBUG - dropped " + command + " already received by another path");
+        return true;
+    }
+
+    /**
+     * Record a server's announced load and its arrival for the failure detector, announces from different
+     * links may race on a new id
+     *
+     * @param interval milliseconds between the server's announces as it reported them, 0 if it didn't
+     */
+    static void announceServer(String id, int load, String hostname, int port, long interval) {
+        long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        while (true) {
+            ServerData server = serverList.get(id);
+            boolean added = false;
+            if (server == null) {
+                // no history yet, so expect the interval it reported, or if it didn't, guess it announces as
+                // often as this server does but don't suspect it on that guess until it has a full history
+                PhiAccrualDetector heartbeats;
+                if (interval > 0) {
+                    heartbeats = new PhiAccrualDetector(HEARTBEAT_WINDOW, interval, interval / 10, now);
+                } else {
+                    long guess = Settings.getActivityInterval();
+                    heartbeats = new PhiAccrualDetector(HEARTBEAT_WINDOW, guess, guess / 10, now, HEARTBEAT_WINDOW);
+                }
+                ServerData newServer = new ServerData(id, load, hostname, port, heartbeats);
+                server = serverList.putIfAbsent(id, newServer);
+                if (server == null) {
+                    server = newServer;
+                    added = true;
+                }
+            }
+            synchronized (server) {
+                if (serverList.get(id) != server) {
+                    // pruned since it was looked up, start again with a fresh history
+                    continue;
+                }
+                if (!added) {
+                    server.getHeartbeats().heartbeat(now);
+                }
+                serverIndex.update(server, load);
+            }
+            if (added && suspectedServers.remove(id) != null) {
+                log.info("INFO - server " + id + " at " + hostname + ":" + port + " is announcing again");
+            }
+            return;
+        }
+    }
+
+    /**
+     * Prune servers the failure detector suspects, a server comes back with its next announce
+     */
+    private void checkServers() {
+        long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        double threshold = Settings.getPhiThreshold();
+        double max = 0;
+        for (ServerData server : serverList.values()) {
+            double phi = server.getHeartbeats().phi(now);
+            if (phi >= threshold) {
+                suspectServer(server, phi);
+            } else {
+                max = Math.max(max, phi);
+            }
+        }
+        maxPhi = max;
+    }
+
+    /**
+     * Stop redirecting to a server and stop waiting for its lock replies
+     */
+    private void suspectServer(ServerData server, double phi) {
+        final String id = server.getId();
+        synchronized (server) {
+            if (!serverList.remove(id, server)) {
+                return;
+            }
+            serverIndex.remove(id);
+            suspectedServers.put(id, server);
+        }
+        routes.remove(id);
+        log.warn("WARN - server " + id + " at " + server.getHostname() + ":" + server.getPort() +
+                " suspected failed, phi " + String.format("%.1f", phi) + ", pruned from server list");
+
+        // on each username's stripe so it can't interleave with that registration's lock replies
+        for (final Registration rego : registrationPool.values()) {
+            registrationExecutor.execute(rego.getUsername(), new Runnable() {
+                @Override
+                public void run() {
+                    serverFailed(rego, id);
+                }
+            });
+        }
+    }
+
+    /**
+     * Recount the allows a registration needs without a failed server, completing it if none are left
+     */
+    private void serverFailed(Registration rego, String serverId) {
+        String username = rego.getUsername();
+        if (registrationPool.get(username) != rego) {
+            return;
+        }
+        int latestCount = rego.serverFailed(serverId);
+        log.info("REGISTER status for " + username + " : waiting for " + latestCount +
+                " more LOCK_ALLOWED after server " + serverId + " failed");
+        if (latestCount == 0) {
+            removeRegistrationFromPool(username);
+            registerSuccessfulUser(rego.getConnection(), username, rego.getSecret());
+        }
+    }
+
+    /**
+     * Forget every known server, for benchmarks
+     */
+    static void clearServers() {
+        serverList.clear();
+        serverIndex.clear();
+        suspectedServers.clear();
+    }
+
+    /**
+     * Find one of the known servers with the lowest load, as long as its load is no more than maxLoad
+     *
+     * @param maxLoad highest acceptable load
+     * @return lightly loaded server, or null if none qualify
+     */
+    public static ServerData findRedirectServer(int maxLoad) {
+        return serverIndex.choose(maxLoad);
+    }
+
+    /**
+     * Encoding and queueing of one routed message on its recipients, timed for metrics
+     */
+    private abstract static class FanOut implements Runnable {
+        @Override
+        public final void run() {
+            long start = System.nanoTime();
+            deliver();
+            Metrics.fannedOut(System.nanoTime() - start);
+        }
+
+        abstract void deliver();
+    }
+
+    class Pair<A,B>{
         public A fst;
         public B snd;
 
@@ -0,0 +1,63 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Envelope;
+import org.json.JSONException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * In memory only registry, forgotten on restart
+ */
+public class HeapUserRegistry implements UserRegistry {
+    private final ConcurrentHashMap<String, String> users = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean contains(String username) {
+        return users.containsKey(username);
+    }
+
+    @Override
+    public String getSecret(String username) {
+        return users.get(username);
+    }
+
+    @Override
+    public boolean checkSecret(String username, Envelope message, String key) throws JSONException {
+        String secret = users.get(username);
+        return secret != null && secret.equals(message.getString(key));
+    }
+
+    @Override
+    public boolean put(String username, String secret) {
+        return !secret.equals(users.put(username, secret));
+    }
+
+    @Override
+    public boolean remove(String username) {
+        return users.remove(username) != null;
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        for (Map.Entry<String, String> entry : users.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,115 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.BloomFilter;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * What the servers behind each server link want, so an activity is only forwarded onto links where some
+ * server might have a client for it.
+ * <p>
+ * Every server floods a summary of its own clients' interest with its SERVER_ANNOUNCE. The link an origin's
+ * announces arrive on here is the way back to it, the same way its activities arrive, so the filters of
+ * every origin currently reached through a link together describe everything behind that link, also in a
+ * mesh with redundant links. Links which haven't carried an announce yet, and every link for a while after
+ * one closes and origins are moving to other links, are sent everything.
+ */
+public class InterestRoutes {
+    private final Map<String, Connection> links = new HashMap<>(); // origin server id to the link it is behind
+    private final Map<String, BloomFilter> interests = new HashMap<>();
+    private volatile int filtering = 0; // origins whose interest isn't everything
+    private volatile long unsettledUntil = 0;
+
+    /**
+     * @param origin   server which sent an announce
+     * @param link     connection it arrived on
+     * @param interest what the origin's clients want
+     */
+    public synchronized void update(String origin, Connection link, BloomFilter interest) {
+        Connection previous = links.put(origin, link);
+        if (previous != null && previous != link) {
+            previous.interests.remove(origin);
+        }
+        BloomFilter old = interests.put(origin, interest);
+        filtering += (interest.isEverything() ? 0 : 1) - (old == null || old.isEverything() ? 0 : 1);
+        link.interests.put(origin, interest);
+        link.routesKnown = true;
+    }
+
+    /**
+     * Forget a server which has stopped announcing
+     *
+     * @param origin server id
+     */
+    public synchronized void remove(String origin) {
+        Connection link = links.remove(origin);
+        if (link != null) {
+            link.interests.remove(origin);
+        }
+        BloomFilter old = interests.remove(origin);
+        if (old != null && !old.isEverything()) {
+            filtering--;
+        }
+    }
+
+    /**
+     * Send everything on every link for a while, after a link closed and its origins are yet to be heard
+     * from on others
+     *
+     * @param millis how long for
+     */
+    public void unsettle(long millis) {
+        unsettledUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @return true if any server announced less than everything, otherwise every link gets everything
+     */
+    public boolean isFiltering() {
+        return filtering > 0;
+    }
+
+    /**
+     * @param link   server connection
+     * @param hashes activity's subscription keys hashed with BloomFilter.hash, or null if it has none
+     * @return true if a server behind the link might want the activity
+     */
+    public boolean wants(Connection link, long[] hashes) {
+        if (hashes == null || !link.routesKnown || System.nanoTime() - unsettledUntil < 0) {
+            return true;
+        }
+        for (BloomFilter interest : link.interests.values()) {
+            for (long hash : hashes) {
+                if (interest.mightContain(hash)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param keys subscription keys
+     * @return their hashes, or null if there are none
+     */
+    public static long[] hash(List<String> keys) {
+        if (keys.isEmpty()) {
+            return null;
+        }
+        long[] hashes = new long[keys.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = BloomFilter.hash(keys.get(i));
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,66 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.JsonCreator;
+import activitystreamer.util.MessageIdCache;
+import activitystreamer.util.Settings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Coalesces lock messages for one server connection which accepted the lock_batch extension. Messages
+ * are sent as a single LOCK_BATCH frame once the batch is full or the batch window has passed since the
+ * first of them, in the order they were added.
+ */
+final class LockBatcher {
+    private final Connection connection;
+    private final int maxLocks = Settings.getLockBatch();
+    private final long window = Settings.getLockBatchWindow();
+    private List<String[]> locks = new ArrayList<>();
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    LockBatcher(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * @param command  LOCK_REQUEST, LOCK_DENIED or LOCK_ALLOWED
+     * @param username username
+     * @param secret   secret
+     * @param serverId server which sent a LOCK_ALLOWED, or null
+     * @param msgId    id the message was first sent with, or NO_ID
+     */
+    synchronized void add(String command, String username, String secret, String serverId, long msgId) {
+        locks.add(new String[]{command, username, secret, serverId,
+                msgId != MessageIdCache.NO_ID ? Long.toString(msgId) : null});
+        if (locks.size() >= maxLocks) {
+            flush();
+        } else if (locks.size() == 1) {
+            Control.getTimer().schedule(flushTask, window);
+        }
+    }
+
+    /**
+     * Send whatever is pending, queueing it while holding the lock so batches can't overtake each other
+     */
+    synchronized void flush() {
+        if (locks.isEmpty()) {
+            return;
+        }
+        connection.writeFrame(JsonCreator.lockBatch(locks));
+        locks = new ArrayList<>();
+    }
+}
@@ -0,0 +1,346 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Frame;
+import activitystreamer.util.Settings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Non-blocking connection owned by a single NioLoop. All socket reads/writes happen on the loop thread,
+ * other threads only queue outgoing messages and ask the loop to service the connection.
+ */
+public class NioConnection extends Connection {
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final NioLoop loop;
+    private SelectionKey key = null;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+
+    private final long batchWindow = TimeUnit.MICROSECONDS.toNanos(Settings.getBatchWindow());
+    private final int maxBatchBytes = Settings.getMaxBatchBytes();
+    private ByteBuffer[] batch = new ByteBuffer[16]; // gathered messages, batchStart onwards not yet fully written
+    private int batchStart = 0;
+    private int batchEnd = 0;
+    private final AtomicBoolean serviceScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile long flushDeadline = 0;
+    private boolean ended = false;
+    private volatile boolean aborted = false; // close without writing, even what is left of the batch
+    private volatile boolean readPaused = false; // a REGISTER is in progress, leave the socket unread
+    private volatile Runnable resumeTask = null; // run on the loop before reading again
+    private volatile boolean backlogged = false; // pipeline decode stripe was full, leave the socket unread
+
+
+    NioConnection(SocketChannel channel, NioLoop loop, boolean outgoing) {
+        super(channel.socket(), outgoing);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    /**
+     * Ask the loop to flush the queue, straight away or once the batch window has passed so that messages
+     * queued in the meantime go out in the same write
+     */
+    @Override
+    protected void outboundPending() {
+        if (batchWindow == 0 || outbound.getQueuedBytes() >= maxBatchBytes) {
+            scheduleService();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            flushDeadline = System.nanoTime() + batchWindow;
+            loop.scheduleFlush(this);
+        }
+    }
+
+    /**
+     * Stop accepting messages, the loop will flush anything already queued and then close the channel
+     */
+    @Override
+    public void closeCon() {
+        if (open) {
+            log.info("INFO - closing connection " + Settings.socketAddress(socket));
+            term = true;
+            open = false;
+            outbound.close();
+            scheduleService();
+        }
+    }
+
+    /**
+     * Have the loop close the channel straight away, dropping any partly written batch, so a peer which has
+     * stopped reading doesn't keep the connection waiting on OP_WRITE
+     */
+    @Override
+    protected void abort() {
+        aborted = true;
+        super.abort();
+        scheduleService();
+    }
+
+    /**
+     * Stop reading, the loop drops read interest the next time it services the connection
+     */
+    @Override
+    protected void pauseReading() {
+        readPaused = true;
+        scheduleService();
+    }
+
+    /**
+     * Read again once the loop has run resume, if any
+     */
+    @Override
+    protected void resumeReading(Runnable resume) {
+        resumeTask = resume;
+        readPaused = false;
+        scheduleService();
+    }
+
+    /**
+     * The loop thread serves every connection on it, so it never waits for the pipeline
+     */
+    @Override
+    protected boolean sharesReadThread() {
+        return true;
+    }
+
+    /**
+     * Stop reading, only called on the loop thread
+     */
+    @Override
+    protected boolean pauseForBacklog() {
+        if (backlogged) {
+            return false;
+        }
+        backlogged = true;
+        scheduleService();
+        return true;
+    }
+
+    @Override
+    protected void resumeAfterBacklog() {
+        backlogged = false;
+        scheduleService();
+    }
+
+    /**
+     * Ask the owning loop to register/flush this connection, only one request is outstanding at a time
+     */
+    void scheduleService() {
+        if (serviceScheduled.compareAndSet(false, true)) {
+            loop.schedule(this);
+        }
+    }
+
+
+    long getFlushDeadline() {
+        return flushDeadline;
+    }
+
+
+    // LOOP THREAD METHODS
+
+    /**
+     * Batch window has passed, flush whatever was queued during it
+     *
+     * @param selector selector of the owning loop
+     */
+    void flushDue(Selector selector) {
+        flushScheduled.set(false);
+        service(selector);
+    }
+
+    /**
+     * Register with the loop selector if not already, flush queued writes and finish closing if requested
+     *
+     * @param selector selector of the owning loop
+     */
+    void service(Selector selector) {
+        serviceScheduled.set(false);
+        if (ended) {
+            return;
+        }
+        if (aborted) {
+            finish();
+            return;
+        }
+        try {
+            if (key == null) {
+                key = channel.register(selector, readOps(), this);
+            }
+            Runnable resume = resumeTask;
+            if (resume != null) {
+                // may pause reading again, so before interest is set by handleWrite
+                resumeTask = null;
+                resume.run();
+            }
+            handleWrite();
+        } catch (IOException | RuntimeException e) {
+            log.error("ERROR - connection to " + Settings.socketAddress(socket) + " closed with exception : " + e);
+            finish();
+        }
+    }
+
+    /**
+     * Read whatever is available and process every complete line, lines are split on '\n' and kept as raw bytes
+     */
+    void handleRead() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                log.debug("INFO - connection to " + Settings.socketAddress(socket) + " closed");
+                if (lineLength > 0 && !term) {
+                    // last line had no newline, deliver it the same as the blocking transport does
+                    appendToLine(new byte[]{'\n'}, 0, 1);
+                    receive(Frame.wrap(Arrays.copyOf(line, lineLength)));
+                    lineLength = 0;
+                }
+                finish();
+                return;
+            }
+
+            readBuffer.flip();
+            byte[] bytes = readBuffer.array();
+            int position = readBuffer.position();
+            int limit = readBuffer.limit();
+            while (position < limit) {
+                int start = position;
+                while (position < limit && bytes[position] != '\n') {
+                    position++;
+                }
+                if (position == limit) {
+                    // partial line, keep until the rest arrives
+                    appendToLine(bytes, start, position - start);
+                    break;
+                }
+                position++;
+
+                byte[] data;
+                if (lineLength == 0) {
+                    data = new byte[position - start];
+                    System.arraycopy(bytes, start, data, 0, data.length);
+                } else {
+                    appendToLine(bytes, start, position - start);
+                    data = new byte[lineLength];
+                    System.arraycopy(line, 0, data, 0, lineLength);
+                    lineLength = 0;
+                }
+
+                if (!term && receive(Frame.wrap(data))) {
+                    closeCon();
+                }
+                if (term) {
+                    // discard anything after the message which ended the connection
+                    break;
+                }
+            }
+            readBuffer.clear();
+
+        } catch (IOException e) {
+            log.error("ERROR - connection to " + Settings.socketAddress(socket) + " closed with exception : " + e);
+            finish();
+        }
+    }
+
+    /**
+     * Gather queued messages into batches of up to the maximum batch size and write each batch with a single
+     * gathering write, until the queue is empty or the socket stops accepting data, then wait for OP_WRITE
+     *
+     * @throws IOException if the channel write fails
+     */
+    void handleWrite() throws IOException {
+        while (batchStart < batchEnd || gatherBatch()) {
+            channel.write(batch, batchStart, batchEnd - batchStart);
+            while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                batch[batchStart++] = null;
+            }
+            if (batchStart < batchEnd) {
+                key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        key.interestOps(readOps());
+
+        if (!open) {
+            finish();
+        }
+    }
+
+    /**
+     * Take queued messages into the batch until it reaches the maximum batch size
+     *
+     * @return false if nothing was queued
+     */
+    private boolean gatherBatch() {
+        batchStart = 0;
+        batchEnd = 0;
+        int bytes = 0;
+        Frame frame;
+        while (bytes < maxBatchBytes && (frame = outbound.poll()) != null) {
+            if (batchEnd == batch.length) {
+                batch = Arrays.copyOf(batch, batch.length * 2);
+            }
+            batch[batchEnd++] = frame.buffer();
+            bytes += frame.length();
+        }
+        return batchEnd > 0;
+    }
+
+    /**
+     * Close channel and deregister, exactly once
+     */
+    void finish() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        open = false;
+        term = true;
+        outbound.close();
+        outbound.clear();
+        Arrays.fill(batch, null);
+        batchStart = 0;
+        batchEnd = 0;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("ERROR - exception closing connection " + Settings.socketAddress(socket) + " : " + e);
+        }
+        connectionEnded();
+    }
+
+    private int readOps() {
+        return readPaused || backlogged ? 0 : SelectionKey.OP_READ;
+    }
+
+    private void appendToLine(byte[] bytes, int start, int length) {
+        if (lineLength + length > line.length) {
+            byte[] bigger = new byte[Math.max(line.length * 2, lineLength + length)];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+        }
+        System.arraycopy(bytes, start, line, lineLength, length);
+        lineLength += length;
+    }
+
+}
@@ -0,0 +1,129 @@
+package activitystreamer.server;
+
+import activitystreamer.util.Settings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Listener thread for the NIO transport, accepts without blocking and hands new connections
+ * round robin to a fixed set of event loops
+ */
+public class NioListener extends Thread {
+    private static final Logger log = LogManager.getLogger();
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private NioLoop[] loops;
+    private int nextLoop = 0;
+    private volatile boolean term = false;
+    private int portnum;
+
+    public NioListener() throws IOException {
+        super("nio-listener");
+        portnum = Settings.getLocalPort(); // keep our own copy in case it changes later
+
+        loops = new NioLoop[Settings.getIoThreads()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioLoop(i);
+        }
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(portnum));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        start();
+    }
+
+    @Override
+    public void run() {
+        log.info("INFO - listening for new connections on " + portnum + " with " + loops.length + " event loops");
+        while (!term) {
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                // client socket could be a server or client connecting, but unknown which at this point
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    log.debug("DEBUG - incoming connection : " + Settings.socketAddress(channel.socket()));
+                    register(new NioConnection(channel, nextLoop(), false));
+                }
+
+            } catch (IOException e) {
+                if (!term) {
+                    log.error("ERROR - listener server socket received exception, shutting down");
+                }
+                term = true;
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("ERROR - error closing listener selector");
+        }
+    }
+
+    /**
+     * Make an outgoing connection to another server, connect blocks but all further IO is on an event loop
+     *
+     * @param hostname remote hostname
+     * @param port     remote port
+     * @return connection object created from the channel
+     * @throws IOException if the connection cannot be made
+     */
+    public Connection connect(String hostname, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(hostname, port));
+        channel.configureBlocking(false);
+        log.debug("DEBUG - outgoing connection: " + Settings.socketAddress(channel.socket()));
+        NioConnection connection = new NioConnection(channel, nextLoop(), true);
+        register(connection);
+        return connection;
+    }
+
+    private void register(NioConnection connection) {
+        Control.getInstance().connectionOpened(connection);
+        connection.scheduleService();
+    }
+
+    private synchronized NioLoop nextLoop() {
+        NioLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        return loop;
+    }
+
+    /**
+     * To terminate listener and event loop threads when closing down
+     *
+     * @param term whether listener should terminate
+     */
+    public void setTerm(boolean term) {
+        this.term = term;
+        try {
+            log.info("INFO - closing server socket");
+            serverChannel.close();
+        } catch (IOException e) {
+            log.error("ERROR - error closing server socket");
+        }
+        selector.wakeup();
+        for (NioLoop loop : loops) {
+            loop.setTerm(term);
+        }
+    }
+
+
+}
@@ -0,0 +1,142 @@
+package activitystreamer.server;
+
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Event loop thread multiplexing reads and writes for many NioConnections over one selector
+ */
+public class NioLoop extends Thread {
+    private static final Logger log = LogManager.getLogger();
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<NioConnection> pending = new ConcurrentLinkedQueue<>();
+    // connections waiting out their batch window, the window is fixed so this is in deadline order
+    private final ConcurrentLinkedQueue<NioConnection> delayed = new ConcurrentLinkedQueue<>();
+    private volatile boolean term = false;
+
+    NioLoop(int index) throws IOException {
+        super("nio-loop-" + index);
+        selector = Selector.open();
+        start();
+    }
+
+    /**
+     * Queue a connection to be registered/flushed on the loop thread
+     *
+     * @param connection connection owned by this loop
+     */
+    void schedule(NioConnection connection) {
+        pending.add(connection);
+        // the loop drains pending after every select, so no need to wake ourselves
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Queue a connection to be flushed once its batch window has passed
+     *
+     * @param connection connection owned by this loop
+     */
+    void scheduleFlush(NioConnection connection) {
+        boolean first = delayed.isEmpty();
+        delayed.add(connection);
+        // only a new earliest deadline changes how long the loop should select for
+        if (first && Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!term) {
+            try {
+                NioConnection next = delayed.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long wait = next.getFlushDeadline() - System.nanoTime();
+                    if (wait <= 0) {
+                        selector.selectNow();
+                    } else {
+                        // select only has millisecond resolution, round up so the window is never cut short
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999999)));
+                    }
+                }
+            } catch (IOException e) {
+                log.error("ERROR - selector failed on " + getName() + ", shutting down loop : " + e);
+                break;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.handleRead();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWrite();
+                    }
+                } catch (CancelledKeyException e) {
+                    connection.finish();
+                } catch (IOException e) {
+                    log.error("ERROR - connection write failed on " + getName() + " : " + e);
+                    connection.finish();
+                } catch (RuntimeException e) {
+                    // only this connection goes, the loop keeps serving the rest
+                    log.error("ERROR - connection failed on " + getName() + " : " + e);
+                    connection.finish();
+                }
+            }
+
+            NioConnection connection;
+            long now = System.nanoTime();
+            while ((connection = delayed.peek()) != null && connection.getFlushDeadline() - now <= 0) {
+                delayed.poll();
+                connection.flushDue(selector);
+            }
+            while ((connection = pending.poll()) != null) {
+                connection.service(selector);
+            }
+        }
+
+        // close anything still registered
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).finish();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("ERROR - error closing selector on " + getName());
+        }
+    }
+
+    /**
+     * To terminate loop thread when closing down
+     *
+     * @param term whether loop should terminate
+     */
+    public void setTerm(boolean term) {
+        this.term = term;
+        selector.wakeup();
+    }
+}
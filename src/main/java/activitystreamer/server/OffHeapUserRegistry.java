@@ -0,0 +1,420 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Envelope;
+import org.json.JSONException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Registry kept outside the Java heap, so millions of users cost neither heap nor GC time.
+ * <p>
+ * Users are appended to an arena of direct memory as [username length][secret length][username][secret], in
+ * UTF-8. An open addressing table, also direct memory, holds one long per slot : the username hash in the
+ * high half and the entry's arena offset + 1 in the low half, 0 for empty. Slots are probed linearly. Looking
+ * up a username hashes and compares its characters against the stored bytes without encoding it, and secrets
+ * received in messages are compared against the stored bytes without decoding them.
+ * <p>
+ * Replaced and removed entries are left in the arena until it fills, when live entries are copied to a new
+ * arena, so writes are amortised O(1). Lookups share a read lock, changes take the write lock.
+ */
+public class OffHeapUserRegistry implements UserRegistry {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long TOMBSTONE = -1L;
+    private static final int ENTRY_HEADER = 8;
+
+    // random per process, so usernames can't be chosen offline to all land in the same slot
+    private static final int HASH_SEED = new SecureRandom().nextInt();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer slots; // longs
+    private int capacity; // slots, power of two
+    private ByteBuffer arena;
+    private int arenaEnd = 0;
+    private int garbage = 0; // arena bytes no longer referenced
+    private int size = 0;
+    private int tombstones = 0;
+
+    public OffHeapUserRegistry() {
+        this(1024);
+    }
+
+    /**
+     * @param expectedUsers users to size the table for, it still grows as needed
+     */
+    public OffHeapUserRegistry(int expectedUsers) {
+        capacity = Integer.highestOneBit(Math.max(16, expectedUsers * 2 - 1)) << 1;
+        slots = ByteBuffer.allocateDirect(capacity * 8);
+        arena = ByteBuffer.allocateDirect(Math.max(4096, expectedUsers * 32));
+    }
+
+    @Override
+    public boolean contains(String username) {
+        lock.readLock().lock();
+        try {
+            return find(username) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getSecret(String username) {
+        lock.readLock().lock();
+        try {
+            int slot = find(username);
+            if (slot < 0) {
+                return null;
+            }
+            int entry = entryAt(slot);
+            return decode(entry + ENTRY_HEADER + arena.getInt(entry), arena.getInt(entry + 4));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean checkSecret(String username, Envelope message, String key) throws JSONException {
+        lock.readLock().lock();
+        try {
+            int slot = find(username);
+            if (slot < 0) {
+                // still insist on a secret, as decoding it would
+                message.getString(key);
+                return false;
+            }
+            int entry = entryAt(slot);
+            return message.stringEquals(key, arena, entry + ENTRY_HEADER + arena.getInt(entry), arena.getInt(entry + 4));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean put(String username, String secret) {
+        byte[] user = username.getBytes(UTF8);
+        byte[] value = secret.getBytes(UTF8);
+        lock.writeLock().lock();
+        try {
+            int slot = find(username);
+            if (slot >= 0) {
+                int entry = entryAt(slot);
+                int userLength = arena.getInt(entry);
+                if (bytesEqual(entry + ENTRY_HEADER + userLength, arena.getInt(entry + 4), value)) {
+                    return false;
+                }
+                int oldLength = ENTRY_HEADER + userLength + arena.getInt(entry + 4);
+                // appending may compact, which still copies the old entry, so it only becomes garbage after
+                int replacement = append(user, value);
+                garbage += oldLength;
+                setSlot(slot, hash(username), replacement);
+                return true;
+            }
+
+            if ((size + tombstones + 1) * 4L > capacity * 3L) {
+                // mostly tombstones just needs cleaning, otherwise grow
+                resize(size * 4L > capacity ? capacity * 2 : capacity);
+            }
+            int hash = hash(username);
+            int entry = append(user, value);
+            slot = hash & (capacity - 1);
+            long current;
+            while ((current = slots.getLong(slot * 8)) != 0 && current != TOMBSTONE) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            if (current == TOMBSTONE) {
+                tombstones--;
+            }
+            setSlot(slot, hash, entry);
+            size++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String username) {
+        lock.writeLock().lock();
+        try {
+            int slot = find(username);
+            if (slot < 0) {
+                return false;
+            }
+            int entry = entryAt(slot);
+            garbage += ENTRY_HEADER + arena.getInt(entry) + arena.getInt(entry + 4);
+            slots.putLong(slot * 8, TOMBSTONE);
+            tombstones++;
+            size--;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                long value = slots.getLong(slot * 8);
+                if (value != 0 && value != TOMBSTONE) {
+                    int entry = (int) value - 1;
+                    int userLength = arena.getInt(entry);
+                    visitor.visit(decode(entry + ENTRY_HEADER, userLength),
+                            decode(entry + ENTRY_HEADER + userLength, arena.getInt(entry + 4)));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return direct memory reserved by the table and arena
+     */
+    public long getReservedBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) slots.capacity() + arena.capacity();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        // direct buffers are released once unreachable
+    }
+
+
+    // TABLE
+
+    /**
+     * @return slot holding username, or -1
+     */
+    private int find(String username) {
+        int hash = hash(username);
+        int slot = hash & (capacity - 1);
+        long value;
+        while ((value = slots.getLong(slot * 8)) != 0) {
+            if (value != TOMBSTONE && (int) (value >>> 32) == hash) {
+                int entry = (int) value - 1;
+                if (usernameEquals(entry, username)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    private int entryAt(int slot) {
+        return (int) slots.getLong(slot * 8) - 1;
+    }
+
+    private void setSlot(int slot, int hash, int entry) {
+        slots.putLong(slot * 8, ((long) hash << 32) | ((entry + 1) & 0xffffffffL));
+    }
+
+    /**
+     * Rebuild the table at the given capacity, dropping tombstones
+     */
+    private void resize(int newCapacity) {
+        ByteBuffer old = slots;
+        int oldCapacity = capacity;
+        capacity = newCapacity;
+        slots = ByteBuffer.allocateDirect(capacity * 8);
+        tombstones = 0;
+        for (int i = 0; i < oldCapacity; i++) {
+            long value = old.getLong(i * 8);
+            if (value != 0 && value != TOMBSTONE) {
+                int slot = (int) (value >>> 32) & (capacity - 1);
+                while (slots.getLong(slot * 8) != 0) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                slots.putLong(slot * 8, value);
+            }
+        }
+    }
+
+
+    // ARENA
+
+    /**
+     * @return offset of the new entry
+     */
+    private int append(byte[] user, byte[] value) {
+        int length = ENTRY_HEADER + user.length + value.length;
+        if (arenaEnd + length > arena.capacity()) {
+            compact(length);
+        }
+        int entry = arenaEnd;
+        arena.putInt(entry, user.length);
+        arena.putInt(entry + 4, value.length);
+        for (int i = 0; i < user.length; i++) {
+            arena.put(entry + ENTRY_HEADER + i, user[i]);
+        }
+        for (int i = 0; i < value.length; i++) {
+            arena.put(entry + ENTRY_HEADER + user.length + i, value[i]);
+        }
+        arenaEnd += length;
+        return entry;
+    }
+
+    /**
+     * Copy live entries into a new arena with half as much again free, or the same size if that is enough
+     * because most of the old one was garbage
+     */
+    private void compact(int needed) {
+        long live = (long) arenaEnd - garbage;
+        long newSize = Math.max(arena.capacity(), (live + needed) * 3 / 2);
+        if (newSize > Integer.MAX_VALUE - 8) {
+            newSize = Integer.MAX_VALUE - 8;
+            if (live + needed > newSize) {
+                throw new IllegalStateException("off heap user registry is full");
+            }
+        }
+        ByteBuffer newArena = ByteBuffer.allocateDirect((int) newSize);
+        int end = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long value = slots.getLong(slot * 8);
+            if (value != 0 && value != TOMBSTONE) {
+                int entry = (int) value - 1;
+                int length = ENTRY_HEADER + arena.getInt(entry) + arena.getInt(entry + 4);
+                for (int i = 0; i < length; i++) {
+                    newArena.put(end + i, arena.get(entry + i));
+                }
+                setSlot(slot, (int) (value >>> 32), end);
+                end += length;
+            }
+        }
+        arena = newArena;
+        arenaEnd = end;
+        garbage = 0;
+    }
+
+    private String decode(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = arena.get(offset + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    private boolean bytesEqual(int offset, int length, byte[] bytes) {
+        if (length != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (arena.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    // UTF-8 WITHOUT ENCODING
+
+    /**
+     * Compare a stored username with a string, encoding the string's characters as it goes
+     */
+    private boolean usernameEquals(int entry, String username) {
+        int length = arena.getInt(entry);
+        int position = entry + ENTRY_HEADER;
+        int end = position + length;
+        int n = username.length();
+        for (int i = 0; i < n; i++) {
+            int cp = codePointAt(username, i);
+            if (Character.isSupplementaryCodePoint(cp)) {
+                i++;
+            }
+            if (cp < 0x80) {
+                if (position >= end || arena.get(position++) != (byte) cp) {
+                    return false;
+                }
+            } else if (cp < 0x800) {
+                if (position + 2 > end || arena.get(position++) != (byte) (0xc0 | (cp >> 6)) ||
+                        arena.get(position++) != (byte) (0x80 | (cp & 0x3f))) {
+                    return false;
+                }
+            } else if (cp < 0x10000) {
+                if (position + 3 > end || arena.get(position++) != (byte) (0xe0 | (cp >> 12)) ||
+                        arena.get(position++) != (byte) (0x80 | ((cp >> 6) & 0x3f)) ||
+                        arena.get(position++) != (byte) (0x80 | (cp & 0x3f))) {
+                    return false;
+                }
+            } else {
+                if (position + 4 > end || arena.get(position++) != (byte) (0xf0 | (cp >> 18)) ||
+                        arena.get(position++) != (byte) (0x80 | ((cp >> 12) & 0x3f)) ||
+                        arena.get(position++) != (byte) (0x80 | ((cp >> 6) & 0x3f)) ||
+                        arena.get(position++) != (byte) (0x80 | (cp & 0x3f))) {
+                    return false;
+                }
+            }
+        }
+        return position == end;
+    }
+
+    /**
+     * Seeded FNV-1a over the string's UTF-8 encoding, never 0 or -1 so it can't be confused with an empty slot
+     */
+    private static int hash(String s) {
+        int h = HASH_SEED;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            int cp = codePointAt(s, i);
+            if (Character.isSupplementaryCodePoint(cp)) {
+                i++;
+            }
+            if (cp < 0x80) {
+                h = (h ^ cp) * 0x01000193;
+            } else if (cp < 0x800) {
+                h = (h ^ (0xc0 | (cp >> 6))) * 0x01000193;
+                h = (h ^ (0x80 | (cp & 0x3f))) * 0x01000193;
+            } else if (cp < 0x10000) {
+                h = (h ^ (0xe0 | (cp >> 12))) * 0x01000193;
+                h = (h ^ (0x80 | ((cp >> 6) & 0x3f))) * 0x01000193;
+                h = (h ^ (0x80 | (cp & 0x3f))) * 0x01000193;
+            } else {
+                h = (h ^ (0xf0 | (cp >> 18))) * 0x01000193;
+                h = (h ^ (0x80 | ((cp >> 12) & 0x3f))) * 0x01000193;
+                h = (h ^ (0x80 | ((cp >> 6) & 0x3f))) * 0x01000193;
+                h = (h ^ (0x80 | (cp & 0x3f))) * 0x01000193;
+            }
+        }
+        h ^= h >>> 16;
+        return h == 0 || h == -1 ? 1 : h;
+    }
+
+    /**
+     * Code point at i, with unpaired surrogates as '?' the same as String.getBytes
+     */
+    private static int codePointAt(String s, int i) {
+        char c = s.charAt(i);
+        if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            return Character.toCodePoint(c, s.charAt(i + 1));
+        }
+        return Character.isSurrogate(c) ? '?' : c;
+    }
+}
@@ -0,0 +1,266 @@
+package activitystreamer.server;
+
+import activitystreamer.util.Frame;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Queue of encoded messages waiting to be written to a connection, with byte accounting against
+ * high and low water marks. Producers never block, the single consumer is the connection's writer.
+ */
+public class OutboundQueue {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Frame> entries = new ArrayDeque<>();
+
+    private final long highWaterMark;
+    private final long lowWaterMark;
+    private final long overflowGrace;
+
+    private long queuedBytes = 0;
+    private long overSince = -1; // time queue went over the high water mark, -1 when below the low water mark
+    private long droppedActivities = 0;
+    private boolean closed = false;
+
+    public OutboundQueue(long highWaterMark, long lowWaterMark, long overflowGrace) {
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
+        this.overflowGrace = overflowGrace;
+    }
+
+    /**
+     * Add an encoded message to the back of the queue
+     *
+     * @param frame encoded message, activity frames may be dropped under pressure
+     * @return true if the queue has now stayed over the high water mark for longer than the grace period
+     */
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            entries.addLast(frame);
+            queuedBytes += frame.length();
+            notEmpty.signal();
+
+            if (queuedBytes <= highWaterMark) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (overSince < 0) {
+                overSince = now;
+            }
+            return now - overSince >= overflowGrace;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the oldest activities until the queue is back down to the low water mark, other messages are kept
+     *
+     * @return number of activities dropped
+     */
+    public int dropOldestActivities() {
+        lock.lock();
+        try {
+            int dropped = 0;
+            Iterator<Frame> it = entries.iterator();
+            while (queuedBytes > lowWaterMark && it.hasNext()) {
+                Frame frame = it.next();
+                if (frame.isActivity()) {
+                    it.remove();
+                    queuedBytes -= frame.length();
+                    dropped++;
+                }
+            }
+            droppedActivities += dropped;
+            updateWaterMark();
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the next message without waiting
+     *
+     * @return next frame, or null if queue is empty
+     */
+    public Frame poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the next message, waiting until one is available or the queue is closed
+     *
+     * @return next frame, or null if queue is closed and fully drained
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (entries.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the next message, waiting at most the given time for one to arrive
+     *
+     * @param timeout maximum wait
+     * @param unit    unit of timeout
+     * @return next frame, or null if none arrived in time or the queue is closed and drained
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (entries.isEmpty() && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting messages, anything already queued can still be drained
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard everything queued, queue a last message and stop accepting any more, all at once so no other
+     * message can go out ahead of it or after it
+     *
+     * @param frame last message
+     * @return false if the queue was already closed, nothing is queued then
+     */
+    public boolean clearAndCloseWith(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            entries.clear();
+            entries.addLast(frame);
+            queuedBytes = frame.length();
+            overSince = -1;
+            closed = true;
+            notEmpty.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard everything queued
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            queuedBytes = 0;
+            overSince = -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if more than the high water mark is queued
+     */
+    public boolean isOverHighWater() {
+        lock.lock();
+        try {
+            return queuedBytes > highWaterMark;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedActivities() {
+        lock.lock();
+        try {
+            return droppedActivities;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Frame removeFirst() {
+        Frame frame = entries.pollFirst();
+        if (frame != null) {
+            queuedBytes -= frame.length();
+            updateWaterMark();
+        }
+        return frame;
+    }
+
+    private void updateWaterMark() {
+        if (queuedBytes <= lowWaterMark) {
+            overSince = -1;
+        }
+    }
+
+
+}
@@ -0,0 +1,462 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Envelope;
+import activitystreamer.util.Settings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Registry kept in memory, by any other registry, and made durable with an append-only log plus compacted
+ * snapshots.
+ * <p>
+ * Every change is appended to users.log as a length prefixed, CRC32 checked record. A single committer thread
+ * writes whatever has queued up as one batch, so concurrent registrations share a write and, with SYNC
+ * durability, a single fsync which they wait for. With ASYNC durability changes return straight away and
+ * are only synced on snapshot and shutdown.
+ * <p>
+ * After every snapshotEvery records the whole registry is written to users.snapshot (via a temporary file
+ * and atomic rename) and the log is emptied, so startup maps the snapshot and replays at most that many
+ * records. A torn record at the end of the log, eg. from a crash mid write, is discarded on startup.
+ */
+public class PersistentUserRegistry implements UserRegistry {
+    private static final Logger log = LogManager.getLogger();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int SNAPSHOT_MAGIC = 0x41535531;
+    private static final int SNAPSHOT_TRAILER = 12; // entry count, crc of everything before it
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private final UserRegistry users; // in memory copy every lookup is served from
+    private final Path directory;
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final Settings.Durability durability;
+    private final int snapshotEvery;
+    private final FileChannel logChannel;
+    private final Thread committer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingAvailable = lock.newCondition();
+    private final Condition batchCommitted = lock.newCondition();
+    private List<byte[]> pending = new ArrayList<>();
+    private long appended = 0;
+    private long committed = 0;
+    private boolean closed = false;
+    private boolean failed = false;
+
+    private int sinceSnapshot = 0; // committer thread only
+
+    /**
+     * Load the registry from a directory, creating it if needed
+     *
+     * @param users         empty in memory registry to load into and serve lookups from
+     * @param directory     where the snapshot and log are kept
+     * @param durability    whether each batch is synced before changes return
+     * @param snapshotEvery log records between snapshots
+     * @throws IOException if existing state can't be read
+     */
+    public PersistentUserRegistry(UserRegistry users, File directory, Settings.Durability durability,
+                                  int snapshotEvery) throws IOException {
+        this.users = users;
+        this.directory = directory.toPath();
+        this.snapshotFile = this.directory.resolve("users.snapshot");
+        this.logFile = this.directory.resolve("users.log");
+        this.durability = durability;
+        this.snapshotEvery = snapshotEvery;
+        Files.createDirectories(this.directory);
+
+        long start = System.currentTimeMillis();
+        int loaded = loadSnapshot();
+        int replayed = replayLog();
+        logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        logChannel.position(logChannel.size());
+        sinceSnapshot = replayed;
+        log.info("INFO - loaded " + users.size() + " users from " + directory + " (" + loaded + " in snapshot, " +
+                replayed + " log records) in " + (System.currentTimeMillis() - start) + " ms");
+
+        committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "user-log");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    @Override
+    public boolean contains(String username) {
+        return users.contains(username);
+    }
+
+    @Override
+    public String getSecret(String username) {
+        return users.getSecret(username);
+    }
+
+    @Override
+    public boolean checkSecret(String username, Envelope message, String key) throws JSONException {
+        return users.checkSecret(username, message, key);
+    }
+
+    @Override
+    public boolean put(String username, String secret) {
+        // unchanged entries, eg. the same LOCK_ALLOWED seen again, don't need logging
+        if (!users.put(username, secret)) {
+            return false;
+        }
+        append(record(PUT, username, secret));
+        return true;
+    }
+
+    @Override
+    public boolean remove(String username) {
+        if (!users.remove(username)) {
+            return false;
+        }
+        append(record(REMOVE, username, ""));
+        return true;
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        users.forEach(visitor);
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * Write out anything queued, then snapshot so the next startup has no log to replay
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            pendingAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+            if (!failed) {
+                snapshot();
+            }
+            logChannel.close();
+        } catch (InterruptedException e) {
+            log.error("ERROR - interrupted closing user registry");
+        } catch (IOException e) {
+            log.error("ERROR - failed to close user registry : " + e);
+        }
+    }
+
+    /**
+     * Queue a record for the committer, with SYNC durability wait until its batch is on disk
+     */
+    private void append(byte[] record) {
+        lock.lock();
+        try {
+            if (closed || failed) {
+                log.error("ERROR - user registry is not writable, change is in memory only");
+                return;
+            }
+            pending.add(record);
+            long sequence = ++appended;
+            pendingAvailable.signal();
+            if (durability == Settings.Durability.SYNC) {
+                while (committed < sequence && !failed) {
+                    batchCommitted.awaitUninterruptibly();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            List<byte[]> batch;
+            long batchEnd;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    pendingAvailable.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                batchEnd = appended;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                write(batch);
+                if (durability == Settings.Durability.SYNC) {
+                    logChannel.force(false);
+                }
+                sinceSnapshot += batch.size();
+                if (sinceSnapshot >= snapshotEvery) {
+                    snapshot();
+                }
+            } catch (IOException e) {
+                log.error("ERROR - failed to write user log, registry is now in memory only : " + e);
+                lock.lock();
+                try {
+                    failed = true;
+                    batchCommitted.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+
+            lock.lock();
+            try {
+                committed = batchEnd;
+                batchCommitted.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void write(List<byte[]> batch) throws IOException {
+        int size = 0;
+        for (byte[] record : batch) {
+            size += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : batch) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            logChannel.write(buffer);
+        }
+    }
+
+    /**
+     * Write every user to a new snapshot and empty the log. Only called by the committer, or after it has
+     * stopped, so nothing is appended to the log meanwhile. Changes made while the snapshot is written may
+     * or may not be in it, but they are still queued for the emptied log, so replaying stays correct.
+     */
+    private void snapshot() throws IOException {
+        Path temporary = directory.resolve("users.snapshot.tmp");
+        CRC32 crc = new CRC32();
+        final int[] count = {0};
+        final IOException[] failure = {null};
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024), crc));
+            out.writeInt(SNAPSHOT_MAGIC);
+            users.forEach(new Visitor() {
+                @Override
+                public void visit(String username, String secret) {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    try {
+                        writeString(out, username);
+                        writeString(out, secret);
+                        count[0]++;
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            out.writeInt(count[0]);
+            out.flush();
+            new DataOutputStream(Channels.newOutputStream(channel)).writeLong(crc.getValue());
+            channel.force(true);
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+
+        // everything logged so far is in the snapshot
+        logChannel.truncate(0);
+        logChannel.position(0);
+        logChannel.force(true);
+        sinceSnapshot = 0;
+        log.debug("DEBUG - wrote user snapshot with " + count[0] + " users");
+    }
+
+    /**
+     * @return users loaded from the snapshot
+     */
+    private int loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 4 + SNAPSHOT_TRAILER || size > Integer.MAX_VALUE) {
+                throw new IOException("user snapshot " + snapshotFile + " has invalid size " + size);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int body = (int) size - 8;
+
+            // check the whole snapshot before using any of it
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[64 * 1024];
+            ByteBuffer view = map.duplicate();
+            view.limit(body);
+            while (view.hasRemaining()) {
+                int length = Math.min(chunk.length, view.remaining());
+                view.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+            if (crc.getValue() != map.getLong(body) || map.getInt(0) != SNAPSHOT_MAGIC) {
+                throw new IOException("user snapshot " + snapshotFile + " is corrupt");
+            }
+
+            int count = map.getInt(body - 4);
+            map.position(4);
+            for (int i = 0; i < count; i++) {
+                String username = readString(map);
+                users.put(username, readString(map));
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Apply every intact log record, and cut off a torn or corrupt tail
+     *
+     * @return records replayed
+     */
+    private int replayLog() throws IOException {
+        if (!Files.exists(logFile)) {
+            return 0;
+        }
+        long valid = 0;
+        int replayed = 0;
+        try (InputStream stream = Files.newInputStream(logFile)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    long checksum = in.readInt() & 0xffffffffL;
+                    if (length < 1 || length > 1024 * 1024) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if (crc.getValue() != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(ByteBuffer.wrap(payload));
+                valid += 8 + payload.length;
+                replayed++;
+            }
+        }
+        long size = Files.size(logFile);
+        if (valid < size) {
+            log.warn("WARN - discarding " + (size - valid) + " bytes of incomplete or corrupt user log");
+            try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+        return replayed;
+    }
+
+    private void apply(ByteBuffer payload) {
+        byte op = payload.get();
+        String username = readString(payload);
+        String secret = readString(payload);
+        if (op == PUT) {
+            users.put(username, secret);
+        } else if (op == REMOVE) {
+            users.remove(username);
+        }
+    }
+
+    /**
+     * @return log record : payload length, crc32 of payload, then op, username and secret
+     */
+    private static byte[] record(byte op, String username, String secret) {
+        byte[] user = username.getBytes(UTF8);
+        byte[] value = secret.getBytes(UTF8);
+        int length = 1 + 4 + user.length + 4 + value.length;
+        ByteBuffer record = ByteBuffer.allocate(8 + length);
+        record.putInt(length).putInt(0);
+        record.put(op).putInt(user.length).put(user).putInt(value.length).put(value);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Make the rename durable, not every platform allows opening a directory so this is best effort
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("DEBUG - could not sync " + directory + " : " + e);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Envelope;
+import activitystreamer.util.Frame;
+import activitystreamer.util.Metrics;
+import activitystreamer.util.Settings;
+import activitystreamer.util.Settings.Stage;
+import activitystreamer.util.StripedExecutor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Staged message processing, used instead of handling each message inline on the connection thread when
+ * Settings.isPipeline(). Received lines pass through decode, validate, route and encode stages, each with its
+ * own striped workers and bounded queues. Every stage stripes by connection so a connection's messages stay
+ * in order end to end, and a full stage makes the one before it wait, back up to the connection reading.
+ * A connection read on a thread shared with others, eg. an NIO loop, never waits for decode. Its line is
+ * queued regardless and only that connection stops reading until the decode stripe has caught up.
+ */
+public class Pipeline {
+    private static final Logger log = LogManager.getLogger();
+
+    private final StripedExecutor[] stages = new StripedExecutor[Stage.values().length];
+
+    Pipeline() {
+        for (Stage stage : Stage.values()) {
+            stages[stage.ordinal()] = new StripedExecutor(stage.name().toLowerCase(),
+                    Settings.getStageThreads(stage), Settings.getStageQueue());
+        }
+    }
+
+    /**
+     * Index a received line, then pass it on for validation
+     *
+     * @param con  connection the line was received on
+     * @param data received line
+     */
+    void decode(final Connection con, final Frame data) {
+        final long received = System.nanoTime();
+        Runnable decode = new Runnable() {
+            @Override
+            public void run() {
+                Envelope json = null;
+                JSONException error = null;
+                try {
+                    json = Envelope.parse(data);
+                } catch (JSONException e) {
+                    error = e;
+                }
+                validate(con, json, error, received);
+            }
+        };
+        StripedExecutor executor = stage(Stage.DECODE);
+        if (!con.sharesReadThread()) {
+            executor.execute(con, decode);
+            return;
+        }
+        executor.offer(con, decode);
+        if (!executor.hasRoom(con) && con.pauseForBacklog()) {
+            // runs once everything queued on the stripe before it has been taken
+            executor.offer(con, new Runnable() {
+                @Override
+                public void run() {
+                    con.resumeAfterBacklog();
+                }
+            });
+        }
+    }
+
+    /**
+     * Check the message against the connection's state, validation passes it on to be routed if needed.
+     * Processing time is recorded from receipt to here, so includes time spent queued for decode/validate.
+     */
+    private void validate(final Connection con, final Envelope json, final JSONException error,
+                          final long received) {
+        stage(Stage.VALIDATE).execute(con, new Runnable() {
+            @Override
+            public void run() {
+                if (con.isInputEnded()) {
+                    return;
+                }
+                if (con.isHeld()) {
+                    con.holdLine(this);
+                    return;
+                }
+                boolean close = error != null ? con.parseFailed(error) : con.validate(json);
+                Metrics.processed(System.nanoTime() - received);
+                if (close) {
+                    // anything received after this is dropped, what was validated before it is still routed
+                    con.endInput();
+                    end(con);
+                }
+            }
+        });
+    }
+
+    /**
+     * A client's REGISTER is done, carry on validating its connection's held lines and read from it again
+     *
+     * @param con   connection the REGISTER was received on
+     * @param close true if the REGISTER ended the connection
+     */
+    void resume(final Connection con, final boolean close) {
+        stage(Stage.VALIDATE).execute(con, new Runnable() {
+            @Override
+            public void run() {
+                if (close && !con.isInputEnded()) {
+                    con.endInput();
+                    end(con);
+                }
+                con.resumeHeld();
+                if (!con.isHeld()) {
+                    con.resumeReading(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hand a validated message to Control for routing
+     *
+     * @param con  connection the message was received on
+     * @param json validated message
+     */
+    void route(final Connection con, final Envelope json) {
+        stage(Stage.ROUTE).execute(con, new Runnable() {
+            @Override
+            public void run() {
+                if (con.isRoutingEnded()) {
+                    return;
+                }
+                if (Control.getInstance().process(con, json)) {
+                    con.endInput();
+                    con.endRouting();
+                    close(con);
+                }
+            }
+        });
+    }
+
+    /**
+     * Follow the messages already validated down the route stage with an end marker, the connection closes
+     * once everything routed before the marker has been encoded
+     */
+    private void end(final Connection con) {
+        stage(Stage.ROUTE).execute(con, new Runnable() {
+            @Override
+            public void run() {
+                if (!con.isRoutingEnded()) {
+                    con.endRouting();
+                    close(con);
+                }
+            }
+        });
+    }
+
+    /**
+     * Follow everything received on a connection which has ended through decode, validate and route with an
+     * end marker, it is released once the marker reaches the route stage, after anything that could still log
+     * it in or subscribe it
+     *
+     * @param con ended connection
+     */
+    void finish(Connection con) {
+        finish(con, Stage.DECODE);
+    }
+
+    private void finish(final Connection con, final Stage stage) {
+        Runnable marker = new Runnable() {
+            @Override
+            public void run() {
+                if (stage == Stage.VALIDATE) {
+                    if (con.isHeld()) {
+                        // lines held behind a REGISTER were received before the end
+                        con.holdLine(this);
+                        return;
+                    }
+                    con.endInput();
+                }
+                if (stage == Stage.ROUTE) {
+                    con.endRouting();
+                    con.release();
+                } else {
+                    finish(con, Stage.values()[stage.ordinal() + 1]);
+                }
+            }
+        };
+        // the first marker may be sent from a thread shared with other connections, so it doesn't wait
+        boolean queued = stage == Stage.DECODE ? stage(stage).offer(con, marker) : stage(stage).execute(con, marker);
+        if (!queued) {
+            // shutting down, nothing more will be processed so release it now
+            marker.run();
+        }
+    }
+
+    private void close(final Connection con) {
+        encode(con, new Runnable() {
+            @Override
+            public void run() {
+                con.closeCon();
+            }
+        });
+    }
+
+    /**
+     * Encode a routed message and queue it on its recipients
+     *
+     * @param con    connection the message was received on
+     * @param fanOut builds the outgoing frame and writes it to each recipient
+     */
+    void encode(Connection con, Runnable fanOut) {
+        stage(Stage.ENCODE).execute(con, fanOut);
+    }
+
+    /**
+     * Log queue depth for every stage, peaks are since the last report
+     */
+    void report() {
+        StringBuilder report = new StringBuilder("DEBUG - pipeline queue depth");
+        for (Stage stage : Stage.values()) {
+            StripedExecutor executor = stage(stage);
+            report.append(stage.ordinal() == 0 ? " " : ", ").append(stage.name().toLowerCase())
+                    .append(' ').append(executor.getQueueDepth())
+                    .append(" (peak ").append(executor.takePeakQueueDepth())
+                    .append(", done ").append(executor.getCompletedTasks()).append(')');
+        }
+        log.debug(report.toString());
+    }
+
+    /**
+     * @param stage pipeline stage
+     * @return messages currently queued for the stage
+     */
+    public int getQueueDepth(Stage stage) {
+        return stage(stage).getQueueDepth();
+    }
+
+    void shutdown() {
+        for (StripedExecutor executor : stages) {
+            executor.shutdown();
+        }
+    }
+
+    private StripedExecutor stage(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+}
@@ -0,0 +1,148 @@
+package activitystreamer.server;
+
+
+import activitystreamer.server.aux.ServerData;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Remote servers ordered by their last announced load, kept up to date one announce at a time.
+ * Finding the least loaded server is O(log n), and rather than always redirecting to that one, a redirect
+ * picks among the few servers within NEAR_EQUAL of it, weighted by how far under the limit each is, so a
+ * login storm spreads out instead of piling onto one server until its next announce.
+ */
+public class ServerLoadIndex {
+    private static final int NEAR_EQUAL = 2; // load difference the redirect rule itself treats as insignificant
+    private static final int MAX_CANDIDATES = 16;
+
+    private final ConcurrentSkipListSet<Entry> byLoad = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<String, Entry> byId = new ConcurrentHashMap<>();
+
+    /**
+     * Record a server's announced load
+     *
+     * @param server server, its load is updated too
+     * @param load   announced load
+     */
+    public void update(ServerData server, int load) {
+        // announces for one server can arrive over different links at once
+        synchronized (server) {
+            Entry previous = byId.get(server.getId());
+            if (previous != null && previous.load == load) {
+                return;
+            }
+            Entry entry = new Entry(server, load);
+            byLoad.add(entry);
+            if (previous != null) {
+                byLoad.remove(previous);
+            }
+            byId.put(server.getId(), entry);
+            server.setLoad(load);
+        }
+    }
+
+    /**
+     * @param id server id
+     */
+    public void remove(String id) {
+        Entry entry = byId.remove(id);
+        if (entry != null) {
+            byLoad.remove(entry);
+        }
+    }
+
+    /**
+     * Pick a server to redirect to
+     *
+     * @param maxLoad highest acceptable load
+     * @return one of the least loaded servers at or under maxLoad, or null if none are
+     */
+    public ServerData choose(int maxLoad) {
+        Entry least;
+        try {
+            least = byLoad.first();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        if (least.load > maxLoad) {
+            return null;
+        }
+
+        // weight each candidate by its headroom under the limit
+        int limit = (int) Math.min((long) least.load + NEAR_EQUAL, maxLoad);
+        Entry[] candidates = new Entry[MAX_CANDIDATES];
+        long[] weights = new long[MAX_CANDIDATES];
+        int count = 0;
+        long total = 0;
+        Iterator<Entry> iterator = byLoad.iterator();
+        while (count < MAX_CANDIDATES && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.load > limit) {
+                break;
+            }
+            candidates[count] = entry;
+            total += (long) maxLoad - entry.load + 1;
+            weights[count++] = total;
+        }
+        if (count == 0) {
+            return least.server;
+        }
+        long pick = ThreadLocalRandom.current().nextLong(total);
+        for (int i = 0; i < count; i++) {
+            if (pick < weights[i]) {
+                return candidates[i].server;
+            }
+        }
+        return candidates[count - 1].server;
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    public void clear() {
+        byId.clear();
+        byLoad.clear();
+    }
+
+    /**
+     * A server at the load it announced, ordered by load then id
+     */
+    private static final class Entry implements Comparable<Entry> {
+        private final ServerData server;
+        private final int load;
+
+        Entry(ServerData server, int load) {
+            this.server = server;
+            this.load = load;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (load != other.load) {
+                return load < other.load ? -1 : 1;
+            }
+            return server.getId().compareTo(other.server.getId());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Entry && compareTo((Entry) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * load + server.getId().hashCode();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package activitystreamer.server;
+
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Inverted index from subscription key, an activity's authenticated_user or one of its tags, to the clients
+ * subscribed to it, so a broadcast is only sent to the subscribed clients it matches rather than checked
+ * against every client. Changes are serialised on the index, lookups read the concurrent sets directly and
+ * see a weakly consistent view.
+ */
+public class SubscriptionIndex {
+    private static final String USER = "user:";
+    private static final String TAG = "tag:";
+
+    private final ConcurrentHashMap<String, Set<Connection>> subscribers = new ConcurrentHashMap<>();
+    private volatile int tagKeys = 0; // keys which are tags, only if there are any are activities' tags read
+
+    public static String userKey(String user) {
+        return USER + user;
+    }
+
+    public static String tagKey(String tag) {
+        return TAG + tag;
+    }
+
+    /**
+     * @param con  client connection
+     * @param keys keys to add to its subscriptions
+     * @return number of keys it is now subscribed to
+     */
+    public synchronized int subscribe(Connection con, Collection<String> keys) {
+        if (con.subscriptions == null) {
+            con.subscriptions = new HashSet<>();
+        }
+        for (String key : keys) {
+            if (!con.subscriptions.add(key)) {
+                continue;
+            }
+            Set<Connection> connections = subscribers.get(key);
+            if (connections == null) {
+                connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+                subscribers.put(key, connections);
+                if (key.startsWith(TAG)) {
+                    tagKeys++;
+                }
+            }
+            connections.add(con);
+        }
+        return con.subscriptions.size();
+    }
+
+    /**
+     * @param con  client connection
+     * @param keys keys to remove from its subscriptions
+     * @return number of keys it is still subscribed to
+     */
+    public synchronized int unsubscribe(Connection con, Collection<String> keys) {
+        if (con.subscriptions == null) {
+            return 0;
+        }
+        for (String key : keys) {
+            if (con.subscriptions.remove(key)) {
+                removeSubscriber(key, con);
+            }
+        }
+        return con.subscriptions.size();
+    }
+
+    /**
+     * Drop every subscription of a connection which has closed
+     *
+     * @param con closed connection
+     */
+    public synchronized void remove(Connection con) {
+        if (con.subscriptions == null) {
+            return;
+        }
+        for (String key : con.subscriptions) {
+            removeSubscriber(key, con);
+        }
+        con.subscriptions = null;
+    }
+
+    /**
+     * @param key subscription key
+     * @return clients subscribed to it, or null if none
+     */
+    public Set<Connection> subscribers(String key) {
+        return subscribers.get(key);
+    }
+
+    /**
+     * @return true if any client subscribes to a tag, otherwise activities' tags needn't be read
+     */
+    public boolean hasTags() {
+        return tagKeys > 0;
+    }
+
+    /**
+     * @return every key subscribed to, a live view
+     */
+    public Set<String> keys() {
+        return subscribers.keySet();
+    }
+
+    public boolean isEmpty() {
+        return subscribers.isEmpty();
+    }
+
+    /**
+     * @return distinct keys subscribed to
+     */
+    public int size() {
+        return subscribers.size();
+    }
+
+    private void removeSubscriber(String key, Connection con) {
+        Set<Connection> connections = subscribers.get(key);
+        if (connections != null && connections.remove(con) && connections.isEmpty()) {
+            subscribers.remove(key);
+            if (key.startsWith(TAG)) {
+                tagKeys--;
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package activitystreamer.server;
+
+
+import activitystreamer.util.Envelope;
+import org.json.JSONException;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Registered usernames and their secrets. Implementations are safe for concurrent use, changes to the same
+ * username are always made from that username's registration stripe.
+ */
+public interface UserRegistry {
+
+    /**
+     * @param username username, not null
+     * @return true if registered
+     */
+    boolean contains(String username);
+
+    /**
+     * @param username username, not null
+     * @return secret, or null if not registered
+     */
+    String getSecret(String username);
+
+    /**
+     * Check a received secret against the registered one, implementations avoid decoding it where they can
+     *
+     * @param username username, not null
+     * @param message  message holding the secret
+     * @param key      member holding the secret
+     * @return true if registered with that secret
+     * @throws JSONException if the member is missing or not a string
+     */
+    boolean checkSecret(String username, Envelope message, String key) throws JSONException;
+
+    /**
+     * Register a user or replace its secret
+     *
+     * @param username username, not null
+     * @param secret   secret, not null
+     * @return true if anything changed
+     */
+    boolean put(String username, String secret);
+
+    /**
+     * @param username username to forget, not null
+     * @return true if it was registered
+     */
+    boolean remove(String username);
+
+    /**
+     * @return number of registered users
+     */
+    int size();
+
+    /**
+     * Visit every user, changes made meanwhile may or may not be seen
+     *
+     * @param visitor called for each user
+     */
+    void forEach(Visitor visitor);
+
+    /**
+     * Make everything durable and release resources, called once at shutdown
+     */
+    void close();
+
+    interface Visitor {
+        void visit(String username, String secret);
+    }
+}
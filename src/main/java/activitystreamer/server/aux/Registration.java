@@ -2,8 +2,10 @@ package activitystreamer.server.aux;
 
 
 import activitystreamer.server.Connection;
+import activitystreamer.util.HashedWheelTimer;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Project : Activity Streamer Server
@@ -12,21 +14,25 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 
 /**
- * Data class to hold pending registration attempts
+ * Data class to hold pending registration attempts, and which servers they are still waiting to hear from.
+ * LOCK_ALLOWED from servers which don't say who they are can only be counted, so if a server fails before
+ * replying the allows needed are exact only if the others name themselves.
  */
 public class Registration {
 
     private Connection connection;
     private String username;
     private String secret;
-    private AtomicInteger allowsNeeded;
+    private Set<String> awaiting;
+    private int anonymousAllows = 0;
     private long startTime = System.currentTimeMillis();
+    private volatile HashedWheelTimer.Timeout timeout = null;
 
-    public Registration(Connection connection, String username, String secret, int allowsNeeded){
+    public Registration(Connection connection, String username, String secret, Set<String> serverIds){
         this.connection = connection;
         this.username = username;
         this.secret = secret;
-        this.allowsNeeded = new AtomicInteger(allowsNeeded);
+        this.awaiting = new HashSet<>(serverIds);
     }
 
     public Connection getConnection() {
@@ -41,20 +47,49 @@ public class Registration {
         return secret;
     }
 
-    public int decrementAndGetAllowsNeeded(){
-        return allowsNeeded.decrementAndGet();
+    /**
+     * @param serverId server which sent LOCK_ALLOWED, null if it didn't say
+     * @return allows still needed
+     */
+    public synchronized int allowed(String serverId){
+        if (serverId == null) {
+            anonymousAllows++;
+        } else {
+            // a server that wasn't known when the registration started isn't waited for
+            awaiting.remove(serverId);
+        }
+        return getAllowsNeeded();
     }
 
-    public int incrementAndGetAllowsNeeded(){
-        return allowsNeeded.incrementAndGet();
+    /**
+     * Stop waiting for a server which has failed
+     *
+     * @return allows still needed
+     */
+    public synchronized int serverFailed(String serverId){
+        awaiting.remove(serverId);
+        return getAllowsNeeded();
     }
 
-    public int getAllowsNeeded(){
-        return allowsNeeded.get();
+    public synchronized int getAllowsNeeded(){
+        return Math.max(0, awaiting.size() - anonymousAllows);
     }
 
 
     public long getStartTime() {
         return startTime;
     }
+
+    public void setTimeout(HashedWheelTimer.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Stop the registration timing out, once it has succeeded or failed
+     */
+    public void cancelTimeout() {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package activitystreamer.server.aux;
 
 
+import activitystreamer.util.PhiAccrualDetector;
+
 /**
  * Project : Activity Streamer Server
  * Author : Daniel Chan (mchan@student.unimelb.edu.au)
@@ -12,15 +14,17 @@ package activitystreamer.server.aux;
  */
 public class ServerData {
     private String id;
-    private int load;
+    private volatile int load;
     private String hostname;
     private int port;
+    private PhiAccrualDetector heartbeats;
 
-    public ServerData(String id, int load, String hostname, int port){
+    public ServerData(String id, int load, String hostname, int port, PhiAccrualDetector heartbeats){
         this.id = id;
         this.load = load;
         this.hostname = hostname;
         this.port = port;
+        this.heartbeats = heartbeats;
     }
 
     public String getId() {
@@ -42,4 +46,11 @@ public class ServerData {
     public int getPort() {
         return port;
     }
+
+    /**
+     * @return detector fed by this server's announces
+     */
+    public PhiAccrualDetector getHeartbeats() {
+        return heartbeats;
+    }
 }
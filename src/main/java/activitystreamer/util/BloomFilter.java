@@ -0,0 +1,134 @@
+package activitystreamer.util;
+
+
+import java.util.Collection;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Fixed Bloom filter of strings, small enough to carry in a SERVER_ANNOUNCE so other servers can tell which
+ * activities this one might want. A key that was added always matches, one that wasn't matches with a false
+ * positive rate of about 1% at the sizing used by of. Keys are hashed once to 64 bits and the HASHES bit
+ * positions derived from the two halves (Kirsch and Mitzenmacher), so a key can be hashed once and checked
+ * against many filters.
+ * <p>
+ * Encoded as hex of the bit words, or "*" for EVERYTHING, which matches every key.
+ */
+public class BloomFilter {
+    public static final BloomFilter EVERYTHING = new BloomFilter(null);
+    private static final int HASHES = 7;
+    private static final int BITS_PER_KEY = 10;
+    private static final int MIN_BITS = 64;
+    private static final int MAX_BITS = 1 << 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long[] words;
+    private final int mask;
+
+    private BloomFilter(long[] words) {
+        this.words = words;
+        mask = words == null ? 0 : words.length * 64 - 1;
+    }
+
+    /**
+     * @param keys keys to add
+     * @return filter holding them, EVERYTHING if there are too many to hold usefully
+     */
+    public static BloomFilter of(Collection<String> keys) {
+        long bits = (long) keys.size() * BITS_PER_KEY;
+        if (bits > MAX_BITS) {
+            return EVERYTHING;
+        }
+        int size = Math.max(MIN_BITS, Integer.highestOneBit((int) Math.max(1, bits - 1)) << 1);
+        BloomFilter filter = new BloomFilter(new long[size / 64]);
+        for (String key : keys) {
+            long hash = hash(key);
+            for (int i = 0; i < HASHES; i++) {
+                int bit = filter.bit(hash, i);
+                filter.words[bit >>> 6] |= 1L << bit;
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * @param encoded as from encode
+     * @return the filter
+     * @throws IllegalArgumentException if it isn't an encoded filter
+     */
+    public static BloomFilter decode(String encoded) {
+        if (encoded.equals("*")) {
+            return EVERYTHING;
+        }
+        int length = encoded.length();
+        if (length < MIN_BITS / 4 || length > MAX_BITS / 4 || Integer.bitCount(length) != 1) {
+            throw new IllegalArgumentException("bloom filter of " + length + " hex digits");
+        }
+        long[] words = new long[length / 16];
+        for (int i = 0; i < length; i++) {
+            int digit = Character.digit(encoded.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("bloom filter with non hex digit " + encoded.charAt(i));
+            }
+            words[i / 16] |= (long) digit << (60 - 4 * (i % 16));
+        }
+        return new BloomFilter(words);
+    }
+
+    public String encode() {
+        if (words == null) {
+            return "*";
+        }
+        char[] hex = new char[words.length * 16];
+        for (int i = 0; i < hex.length; i++) {
+            hex[i] = HEX[(int) (words[i / 16] >>> (60 - 4 * (i % 16))) & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @param hash key hashed with hash
+     * @return true if the key may have been added, always for EVERYTHING
+     */
+    public boolean mightContain(long hash) {
+        if (words == null) {
+            return true;
+        }
+        for (int i = 0; i < HASHES; i++) {
+            int bit = bit(hash, i);
+            if ((words[bit >>> 6] & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean mightContain(String key) {
+        return mightContain(hash(key));
+    }
+
+    public boolean isEverything() {
+        return words == null;
+    }
+
+    /**
+     * 64 bit FNV-1a of the key's chars, mixed so both halves are well distributed
+     */
+    public static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        return MessageIdCache.mix(hash);
+    }
+
+    private int bit(long hash, int i) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return (h1 + i * h2) & mask;
+    }
+}
@@ -0,0 +1,75 @@
+package activitystreamer.util;
+
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Starts the per connection threads of the blocking transport, as platform threads or, when running on
+ * Java 21+ with Settings.getThreadMode() VIRTUAL, as virtual threads. Virtual threads are looked up
+ * reflectively so the server still builds and runs on older JDKs.
+ */
+public final class ConnectionThreads {
+    private static final Logger log = LogManager.getLogger();
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_START;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method start = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            start = builder.getMethod("start", Runnable.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_START = start;
+    }
+
+    private ConnectionThreads() {
+    }
+
+    /**
+     * @return whether this JVM can start virtual threads
+     */
+    public static boolean virtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Start a connection thread in the configured thread mode
+     *
+     * @param name   thread name
+     * @param target work for the thread
+     * @return the started thread
+     */
+    public static Thread start(String name, Runnable target) {
+        if (Settings.getThreadMode() == Settings.ThreadMode.VIRTUAL && OF_VIRTUAL != null) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_START.invoke(builder, target);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                log.error("ERROR - could not start virtual thread, using a platform thread : " + e);
+            }
+        }
+        Thread thread = new Thread(target, name);
+        thread.start();
+        return thread;
+    }
+}
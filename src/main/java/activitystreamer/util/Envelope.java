@@ -0,0 +1,824 @@
+package activitystreamer.util;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Index overlay over a received message. A single pass validates the JSON and records where each top level
+ * member's key and value sit in the frame, without building any objects. Field values are only decoded when
+ * asked for, so large values like the activity object stay as an opaque slice of the original bytes.
+ *
+ * Getters follow JSONObject semantics and throw JSONException with the same messages when a field is
+ * missing or has the wrong type.
+ */
+public final class Envelope {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int STRING = 1;
+    private static final int NUMBER = 2;
+    private static final int OBJECT = 3;
+    private static final int ARRAY = 4;
+    private static final int LITERAL = 5;
+
+    // per member : key start, key end, value start, value end, value type
+    private static final int FIELDS = 5;
+
+    // members beyond which keys are looked up through a hash table rather than compared with each in turn
+    private static final int HASHED = 8;
+
+    // nesting beyond which a message is rejected, values are skipped recursively
+    private static final int MAX_DEPTH = 512;
+
+    // random per process, so a message can't be built offline with every key in the same hash slot
+    private static final int HASH_SEED = new SecureRandom().nextInt();
+
+    private final Frame frame;
+    private final byte[] data;
+    private final int start;
+    private final int end;
+    private int[] members = new int[FIELDS * 8];
+    private int count = 0;
+    private int[] table = null; // open addressed member number + 1 by key hash, once there are over HASHED
+    private String command = null;
+    private volatile Envelope lastObject = null; // last member indexed by getObject, asked for again by encoders
+
+    private Envelope(Frame frame) {
+        this.frame = frame;
+        this.data = frame.array();
+        this.start = 0;
+        int length = frame.length() - 1;
+        if (length > 0 && data[length - 1] == '\r') {
+            length--;
+        }
+        this.end = length;
+    }
+
+    private Envelope(Frame frame, int start, int end) {
+        this.frame = frame;
+        this.data = frame.array();
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Index a received message
+     *
+     * @param frame received line
+     * @return envelope over the frame
+     * @throws JSONException if the message is not a JSON object
+     */
+    public static Envelope parse(Frame frame) throws JSONException {
+        Envelope envelope = new Envelope(frame);
+        try {
+            envelope.index();
+        } catch (NestingException e) {
+            // JSONObject recurses without a limit too, so don't hand it the message
+            throw e;
+        } catch (JSONException e) {
+            // only standard JSON is understood here, let JSONObject decide on anything else so lenient input
+            // it used to accept is still accepted, and rejected input fails with exactly the same message
+            envelope.checkNesting();
+            JSONObject json = new JSONObject(frame.toString());
+            envelope = new Envelope(Frame.of(json.toString()));
+            envelope.index();
+        }
+        envelope.tagCommand();
+        return envelope;
+    }
+
+    /**
+     * Decode the command once and tag the frame with it, a missing command is reported by getCommand
+     */
+    private void tagCommand() {
+        int m = find("command");
+        if (m >= 0 && members[m + 4] == STRING) {
+            command = decodeString(members[m + 2], members[m + 3]);
+            frame.tag(Metrics.Command.of(command));
+        }
+    }
+
+    /**
+     * @return the frame this envelope indexes, for forwarding unchanged
+     */
+    public Frame getFrame() {
+        return frame;
+    }
+
+    public String getCommand() throws JSONException {
+        return command != null ? command : getString("command");
+    }
+
+    public boolean has(String key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * @param key member name
+     * @return decoded string value
+     * @throws JSONException if missing or not a string
+     */
+    public String getString(String key) throws JSONException {
+        int m = require(key);
+        if (members[m + 4] != STRING) {
+            throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] not a string.");
+        }
+        return decodeString(members[m + 2], members[m + 3]);
+    }
+
+    /**
+     * Compare a string member with UTF-8 bytes, straight from the received bytes unless it has escapes
+     *
+     * @param key    member name
+     * @param bytes  buffer holding the bytes to compare with, eg. off heap
+     * @param offset index of the first byte
+     * @param length number of bytes
+     * @return true if the decoded member would equal the string those bytes encode
+     * @throws JSONException if missing or not a string
+     */
+    public boolean stringEquals(String key, ByteBuffer bytes, int offset, int length) throws JSONException {
+        int m = require(key);
+        if (members[m + 4] != STRING) {
+            throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] not a string.");
+        }
+        int from = members[m + 2] + 1;
+        int to = members[m + 3] - 1;
+        boolean ascii = true;
+        for (int i = from; i < to; i++) {
+            if (data[i] == '\\') {
+                return Arrays.equals(decodeString(members[m + 2], members[m + 3]).getBytes(UTF8), copy(bytes, offset, length));
+            }
+            ascii &= data[i] >= 0;
+        }
+        if (to - from == length) {
+            int i = from;
+            while (i < to && data[i] == bytes.get(offset + i - from)) {
+                i++;
+            }
+            if (i == to) {
+                return true;
+            }
+        }
+        // malformed UTF-8 received decodes to replacement characters, so only ASCII can be ruled out as is
+        return !ascii && Arrays.equals(decodeString(members[m + 2], members[m + 3]).getBytes(UTF8), copy(bytes, offset, length));
+    }
+
+    private static byte[] copy(ByteBuffer bytes, int offset, int length) {
+        byte[] copy = new byte[length];
+        for (int i = 0; i < length; i++) {
+            copy[i] = bytes.get(offset + i);
+        }
+        return copy;
+    }
+
+    /**
+     * @param key member name
+     * @return int value, numeric strings are accepted as JSONObject does
+     * @throws JSONException if missing or not an int
+     */
+    public int getInt(String key) throws JSONException {
+        int m = require(key);
+        int valueStart = members[m + 2];
+        int valueEnd = members[m + 3];
+        try {
+            if (members[m + 4] == NUMBER) {
+                String number = new String(data, valueStart, valueEnd - valueStart, UTF8);
+                if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+                    return (int) Long.parseLong(number);
+                }
+                return (int) Double.parseDouble(number);
+            } else if (members[m + 4] == STRING) {
+                return Integer.parseInt(decodeString(valueStart, valueEnd));
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] is not an int.");
+    }
+
+    /**
+     * @param key member name
+     * @return long value, numeric strings are accepted as JSONObject does
+     * @throws JSONException if missing or not a long
+     */
+    public long getLong(String key) throws JSONException {
+        int m = require(key);
+        int valueStart = members[m + 2];
+        int valueEnd = members[m + 3];
+        try {
+            if (members[m + 4] == NUMBER) {
+                String number = new String(data, valueStart, valueEnd - valueStart, UTF8);
+                if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+                    return Long.parseLong(number);
+                }
+                return (long) Double.parseDouble(number);
+            } else if (members[m + 4] == STRING) {
+                return Long.parseLong(decodeString(valueStart, valueEnd));
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] is not a long.");
+    }
+
+    /**
+     * Check a member is an object without decoding it
+     *
+     * @param key member name
+     * @throws JSONException if missing or not an object
+     */
+    public void checkObject(String key) throws JSONException {
+        int m = require(key);
+        if (members[m + 4] != OBJECT) {
+            throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] is not a JSONObject.");
+        }
+    }
+
+    /**
+     * Index an object member in place, still without decoding any of its values
+     *
+     * @param key member name
+     * @return envelope over the member's bytes
+     * @throws JSONException if missing or not an object
+     */
+    public Envelope getObject(String key) throws JSONException {
+        checkObject(key);
+        int m = find(key);
+        Envelope object = lastObject;
+        if (object != null && object.start == members[m + 2]) {
+            return object;
+        }
+        object = new Envelope(frame, members[m + 2], members[m + 3]);
+        object.index();
+        lastObject = object;
+        return object;
+    }
+
+    /**
+     * Copy members as they were received, each preceded by a comma, so they can be spliced after other fields
+     *
+     * @param writer   writer to copy into
+     * @param excluded name of a member to leave out, eg. one being replaced
+     */
+    void writeMembers(JsonWriter writer, String excluded) {
+        for (int m = 0; m < count * FIELDS; m += FIELDS) {
+            if (excluded != null && keyEquals(members[m], members[m + 1], excluded)) {
+                continue;
+            }
+            writer.put(',');
+            // from the key's opening quote to the end of the value
+            writer.raw(data, members[m] - 1, members[m + 3] - members[m] + 1);
+        }
+    }
+
+    /**
+     * Materialise an object member, only for when it actually has to be modified
+     *
+     * @param key member name
+     * @return decoded object
+     * @throws JSONException if missing or not an object
+     */
+    public JSONObject getJSONObject(String key) throws JSONException {
+        checkObject(key);
+        int m = find(key);
+        return new JSONObject(new String(data, members[m + 2], members[m + 3] - members[m + 2], UTF8));
+    }
+
+
+    /**
+     * Materialise an array member
+     *
+     * @param key member name
+     * @return decoded array
+     * @throws JSONException if missing or not an array
+     */
+    public JSONArray getJSONArray(String key) throws JSONException {
+        int m = require(key);
+        if (members[m + 4] != ARRAY) {
+            throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] is not a JSONArray.");
+        }
+        return new JSONArray(new String(data, members[m + 2], members[m + 3] - members[m + 2], UTF8));
+    }
+
+
+    // INDEXING
+
+    private void index() {
+        count = 0;
+        int p = skipWhitespace(start);
+        if (p >= end || data[p] != '{') {
+            throw syntaxError("A JSONObject text must begin with '{'", p);
+        }
+        p = skipWhitespace(p + 1);
+        if (p < end && data[p] == '}') {
+            return;
+        }
+
+        while (true) {
+            if (p >= end || data[p] != '"') {
+                throw syntaxError("Expected a string key", p);
+            }
+            int keyStart = p + 1;
+            p = skipString(p);
+            int keyEnd = p - 1;
+
+            p = skipWhitespace(p);
+            if (p >= end || data[p] != ':') {
+                throw syntaxError("Expected a ':' after a key", p);
+            }
+            p = skipWhitespace(p + 1);
+            if (p >= end) {
+                throw syntaxError("Missing value", p);
+            }
+            int valueStart = p;
+            int type = typeAt(p);
+            p = skipValue(p, 1);
+
+            addMember(keyStart, keyEnd, valueStart, p, type);
+
+            p = skipWhitespace(p);
+            if (p >= end) {
+                throw syntaxError("Expected a ',' or '}'", p);
+            }
+            if (data[p] == '}') {
+                return;
+            }
+            if (data[p] != ',') {
+                throw syntaxError("Expected a ',' or '}'", p);
+            }
+            p = skipWhitespace(p + 1);
+        }
+    }
+
+    private void addMember(int keyStart, int keyEnd, int valueStart, int valueEnd, int type) {
+        int hash = 0;
+        if (table == null) {
+            for (int m = 0; m < count * FIELDS; m += FIELDS) {
+                if (keysEqual(members[m], members[m + 1], keyStart, keyEnd)) {
+                    throw syntaxError("Duplicate key", keyStart);
+                }
+            }
+        } else {
+            hash = keyHash(keyStart, keyEnd);
+            int mask = table.length - 1;
+            for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int m = (table[slot] - 1) * FIELDS;
+                if (keysEqual(members[m], members[m + 1], keyStart, keyEnd)) {
+                    throw syntaxError("Duplicate key", keyStart);
+                }
+            }
+        }
+        if ((count + 1) * FIELDS > members.length) {
+            int[] bigger = new int[members.length * 2];
+            System.arraycopy(members, 0, bigger, 0, members.length);
+            members = bigger;
+        }
+        int m = count * FIELDS;
+        members[m] = keyStart;
+        members[m + 1] = keyEnd;
+        members[m + 2] = valueStart;
+        members[m + 3] = valueEnd;
+        members[m + 4] = type;
+        count++;
+
+        if (table != null && count * 2 <= table.length) {
+            insert(count - 1, hash);
+        } else if (count > HASHED) {
+            rehash(table == null ? HASHED * 4 : table.length * 2);
+        }
+    }
+
+    /**
+     * Rebuild the key table at a new size, kept at most half full
+     *
+     * @param size power of two
+     */
+    private void rehash(int size) {
+        table = new int[size];
+        for (int i = 0; i < count; i++) {
+            insert(i, keyHash(members[i * FIELDS], members[i * FIELDS + 1]));
+        }
+    }
+
+    private void insert(int member, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = member + 1;
+    }
+
+    private int typeAt(int p) {
+        switch (data[p]) {
+            case '"':
+                return STRING;
+            case '{':
+                return OBJECT;
+            case '[':
+                return ARRAY;
+            case 't':
+            case 'f':
+            case 'n':
+                return LITERAL;
+            default:
+                return NUMBER;
+        }
+    }
+
+    private int skipValue(int p, int depth) {
+        if (p >= end) {
+            throw syntaxError("Missing value", p);
+        }
+        switch (data[p]) {
+            case '"':
+                return skipString(p);
+            case '{':
+                return skipContainer(p, '}', true, depth);
+            case '[':
+                return skipContainer(p, ']', false, depth);
+            case 't':
+                return skipLiteral(p, "true");
+            case 'f':
+                return skipLiteral(p, "false");
+            case 'n':
+                return skipLiteral(p, "null");
+            default:
+                return skipNumber(p);
+        }
+    }
+
+    private int skipContainer(int p, char close, boolean object, int depth) {
+        if (depth >= MAX_DEPTH) {
+            throw new NestingException("Nesting too deep at " + p);
+        }
+        p = skipWhitespace(p + 1);
+        if (p < end && data[p] == close) {
+            return p + 1;
+        }
+        while (true) {
+            if (object) {
+                if (p >= end || data[p] != '"') {
+                    throw syntaxError("Expected a string key", p);
+                }
+                p = skipWhitespace(skipString(p));
+                if (p >= end || data[p] != ':') {
+                    throw syntaxError("Expected a ':' after a key", p);
+                }
+                p = skipWhitespace(p + 1);
+            }
+            p = skipWhitespace(skipValue(p, depth + 1));
+            if (p >= end) {
+                throw syntaxError("Expected a ',' or '" + close + "'", p);
+            }
+            if (data[p] == close) {
+                return p + 1;
+            }
+            if (data[p] != ',') {
+                throw syntaxError("Expected a ',' or '" + close + "'", p);
+            }
+            p = skipWhitespace(p + 1);
+        }
+    }
+
+    private int skipString(int p) {
+        int i = p + 1;
+        while (i < end) {
+            byte b = data[i];
+            if (b == '"') {
+                return i + 1;
+            }
+            if (b == '\n' || b == '\r' || b == 0) {
+                break;
+            }
+            if (b == '\\') {
+                if (i + 1 >= end) {
+                    break;
+                }
+                byte escaped = data[i + 1];
+                if (escaped == 'u') {
+                    if (i + 5 >= end || hex(data[i + 2]) < 0 || hex(data[i + 3]) < 0 ||
+                            hex(data[i + 4]) < 0 || hex(data[i + 5]) < 0) {
+                        throw syntaxError("Illegal escape.", i);
+                    }
+                    i += 6;
+                    continue;
+                }
+                if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+                    throw syntaxError("Illegal escape.", i);
+                }
+                i += 2;
+                continue;
+            }
+            i++;
+        }
+        throw syntaxError("Unterminated string", i);
+    }
+
+    private int skipNumber(int p) {
+        int i = p;
+        if (i < end && data[i] == '-') {
+            i++;
+        }
+        int digits = i;
+        while (i < end && data[i] >= '0' && data[i] <= '9') {
+            i++;
+        }
+        if (i == digits) {
+            throw syntaxError("Missing value", p);
+        }
+        if (i < end && data[i] == '.') {
+            i++;
+            int fraction = i;
+            while (i < end && data[i] >= '0' && data[i] <= '9') {
+                i++;
+            }
+            if (i == fraction) {
+                throw syntaxError("Missing value", p);
+            }
+        }
+        if (i < end && (data[i] == 'e' || data[i] == 'E')) {
+            i++;
+            if (i < end && (data[i] == '+' || data[i] == '-')) {
+                i++;
+            }
+            int exponent = i;
+            while (i < end && data[i] >= '0' && data[i] <= '9') {
+                i++;
+            }
+            if (i == exponent) {
+                throw syntaxError("Missing value", p);
+            }
+        }
+        return i;
+    }
+
+    private int skipLiteral(int p, String literal) {
+        int length = literal.length();
+        if (p + length > end) {
+            throw syntaxError("Missing value", p);
+        }
+        for (int i = 0; i < length; i++) {
+            if (data[p + i] != literal.charAt(i)) {
+                throw syntaxError("Missing value", p);
+            }
+        }
+        return p + length;
+    }
+
+    private int skipWhitespace(int p) {
+        while (p < end && (data[p] == ' ' || data[p] == '\t' || data[p] == '\n' || data[p] == '\r')) {
+            p++;
+        }
+        return p;
+    }
+
+
+    // LOOKUP AND DECODING
+
+    private int require(String key) throws JSONException {
+        int m = find(key);
+        if (m < 0) {
+            throw new JSONException("JSONObject[" + JSONObject.quote(key) + "] not found.");
+        }
+        return m;
+    }
+
+    private int find(String key) {
+        if (table != null) {
+            int hash = hash(key);
+            int mask = table.length - 1;
+            for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int m = (table[slot] - 1) * FIELDS;
+                if (keyEquals(members[m], members[m + 1], key)) {
+                    return m;
+                }
+            }
+            return -1;
+        }
+        for (int m = 0; m < count * FIELDS; m += FIELDS) {
+            if (keyEquals(members[m], members[m + 1], key)) {
+                return m;
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int start, int finish, String key) {
+        int length = finish - start;
+        boolean plain = true;
+        if (length == key.length()) {
+            for (int i = 0; i < length; i++) {
+                byte b = data[start + i];
+                if (b == '\\' || b < 0) {
+                    plain = false;
+                    break;
+                }
+                if (b != key.charAt(i)) {
+                    return false;
+                }
+            }
+            if (plain) {
+                return true;
+            }
+        } else {
+            for (int i = start; i < finish; i++) {
+                if (data[i] == '\\' || data[i] < 0) {
+                    plain = false;
+                    break;
+                }
+            }
+            if (plain) {
+                return false;
+            }
+        }
+        // escaped or non ascii key, compare decoded
+        return decodeString(start - 1, finish + 1).equals(key);
+    }
+
+    /**
+     * Compare two keys in the frame as JSONObject would, by their decoded value, so escaped spellings of the
+     * same key are equal
+     */
+    private boolean keysEqual(int aStart, int aEnd, int bStart, int bEnd) {
+        if (!isPlain(aStart, aEnd) || !isPlain(bStart, bEnd)) {
+            return decodeString(aStart - 1, aEnd + 1).equals(decodeString(bStart - 1, bEnd + 1));
+        }
+        if (aEnd - aStart != bEnd - bStart) {
+            return false;
+        }
+        for (int i = 0; i < aEnd - aStart; i++) {
+            if (data[aStart + i] != data[bStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash of a key in the frame by its decoded value, equal to hash of the decoded string
+     */
+    private int keyHash(int start, int finish) {
+        if (!isPlain(start, finish)) {
+            return hash(decodeString(start - 1, finish + 1));
+        }
+        int hash = HASH_SEED;
+        for (int i = start; i < finish; i++) {
+            hash = (hash ^ data[i]) * 0x01000193;
+        }
+        return hash ^ hash >>> 16;
+    }
+
+    /**
+     * Seeded 32 bit FNV-1a of the key's chars
+     */
+    private static int hash(String key) {
+        int hash = HASH_SEED;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x01000193;
+        }
+        return hash ^ hash >>> 16;
+    }
+
+    /**
+     * @return true if the string has no escapes or non ascii bytes, so its bytes are its chars
+     */
+    private boolean isPlain(int start, int finish) {
+        for (int i = start; i < finish; i++) {
+            if (data[i] == '\\' || data[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode a string value
+     *
+     * @param start  index of opening quote
+     * @param finish index after closing quote
+     * @return decoded string
+     */
+    private String decodeString(int start, int finish) {
+        int from = start + 1;
+        int to = finish - 1;
+        int escape = -1;
+        for (int i = from; i < to; i++) {
+            if (data[i] == '\\') {
+                escape = i;
+                break;
+            }
+        }
+        if (escape < 0) {
+            return new String(data, from, to - from, UTF8);
+        }
+
+        StringBuilder sb = new StringBuilder(to - from);
+        sb.append(new String(data, from, escape - from, UTF8));
+        int i = escape;
+        while (i < to) {
+            int run = i;
+            while (i < to && data[i] != '\\') {
+                i++;
+            }
+            if (i > run) {
+                sb.append(new String(data, run, i - run, UTF8));
+            }
+            if (i >= to) {
+                break;
+            }
+            byte escaped = data[i + 1];
+            switch (escaped) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    sb.append((char) ((hex(data[i + 2]) << 12) | (hex(data[i + 3]) << 8) |
+                            (hex(data[i + 4]) << 4) | hex(data[i + 5])));
+                    i += 4;
+                    break;
+                default:
+                    sb.append((char) escaped);
+            }
+            i += 2;
+        }
+        return sb.toString();
+    }
+
+    private static int hex(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Reject a message nested deeper than MAX_DEPTH before JSONObject gets it, counting brackets outside of
+     * single or double quoted strings since lenient input may use either
+     */
+    private void checkNesting() {
+        int depth = 0;
+        byte quote = 0;
+        for (int p = start; p < end; p++) {
+            byte b = data[p];
+            if (quote != 0) {
+                if (b == '\\') {
+                    p++;
+                } else if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '{' || b == '[') {
+                if (++depth > MAX_DEPTH) {
+                    throw new NestingException("Nesting too deep at " + p);
+                }
+            } else if (b == '}' || b == ']') {
+                depth--;
+            }
+        }
+    }
+
+    private JSONException syntaxError(String message, int position) {
+        return new JSONException(message + " at " + position);
+    }
+
+    /**
+     * Message nested deeper than MAX_DEPTH, rejected outright rather than retried with JSONObject
+     */
+    private static final class NestingException extends JSONException {
+        private static final long serialVersionUID = 1L;
+
+        NestingException(String message) {
+            super(message);
+        }
+    }
+}
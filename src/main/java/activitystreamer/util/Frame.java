@@ -0,0 +1,133 @@
+package activitystreamer.util;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Immutable message already encoded to UTF-8 with its newline terminator. A frame is encoded once and can
+ * be queued on any number of connections, each of which writes from its own read-only view.
+ */
+public final class Frame {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] data;
+    private final ByteBuffer buffer;
+    private final boolean activity;
+    // known when built, or once the received line is first indexed, which happens before it is shared
+    private Metrics.Command command;
+
+    Frame(byte[] data, boolean activity) {
+        this(data, activity, Metrics.Command.OTHER);
+    }
+
+    Frame(byte[] data, boolean activity, Metrics.Command command) {
+        this.data = data;
+        this.buffer = ByteBuffer.wrap(data).asReadOnlyBuffer();
+        this.activity = activity;
+        this.command = command;
+    }
+
+    /**
+     * Encode a protocol message
+     *
+     * @param msg message without terminator
+     * @return frame for the message
+     */
+    public static Frame of(String msg) {
+        return new Frame((msg + "\n").getBytes(UTF8), false);
+    }
+
+    /**
+     * Encode an activity broadcast, which connections may drop if they fall too far behind
+     *
+     * @param msg message without terminator
+     * @return frame for the message
+     */
+    public static Frame activity(String msg) {
+        return new Frame((msg + "\n").getBytes(UTF8), true);
+    }
+
+    /**
+     * Wrap bytes received from a connection so they can be forwarded unchanged
+     *
+     * @param data received line, must end with the newline terminator and not be modified afterwards
+     * @return frame sharing the given array
+     */
+    public static Frame wrap(byte[] data) {
+        return new Frame(data, false);
+    }
+
+    /**
+     * @return frame sharing the same bytes, marked as an activity which may be dropped under pressure
+     */
+    public Frame asActivity() {
+        return activity ? this : new Frame(data, true, command);
+    }
+
+    /**
+     * @return independent read-only view of the encoded bytes, positioned at the start
+     */
+    public ByteBuffer buffer() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * @return backing array, only for decoding within this package, never modify
+     */
+    byte[] array() {
+        return data;
+    }
+
+    /**
+     * Write the encoded bytes to a stream
+     *
+     * @param out stream to write to
+     * @throws IOException if the write fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data, 0, data.length);
+    }
+
+    /**
+     * @return encoded length in bytes including terminator
+     */
+    public int length() {
+        return data.length;
+    }
+
+    public boolean isActivity() {
+        return activity;
+    }
+
+    /**
+     * @return protocol command of the message, for metrics
+     */
+    public Metrics.Command command() {
+        return command;
+    }
+
+    void tag(Metrics.Command command) {
+        this.command = command;
+    }
+
+    /**
+     * @return message decoded without its line terminator
+     */
+    @Override
+    public String toString() {
+        int length = data.length - 1;
+        if (length > 0 && data[length - 1] == '\r') {
+            length--;
+        }
+        return new String(data, 0, length, UTF8);
+    }
+}
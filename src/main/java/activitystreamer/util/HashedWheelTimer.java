@@ -0,0 +1,234 @@
+package activitystreamer.util;
+
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Hashed timing wheel, scheduling and cancelling a timeout are O(1) whatever the number pending.
+ * <p>
+ * The wheel is a ring of buckets each covering one tick, a timeout goes in the bucket its deadline falls in
+ * along with how many full turns of the wheel remain before it is due. Any thread may schedule or cancel,
+ * both only touch a concurrent queue, the bucket lists themselves belong to the single thread calling tick.
+ * Tasks run on that thread so must be short, anything slow should be handed to an executor.
+ */
+public class HashedWheelTimer {
+    private static final Logger log = LogManager.getLogger();
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong(0);
+    private long tick = 0; // ticker thread only
+
+    /**
+     * @param tickMillis resolution, timeouts fire up to one tick late
+     * @param wheelSize  buckets, rounded up to a power of two, more buckets means fewer timeouts per bucket
+     */
+    public HashedWheelTimer(long tickMillis, int wheelSize) {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Run a task once after a delay
+     *
+     * @param task  task to run on the ticker thread
+     * @param delay milliseconds from now
+     * @return handle to cancel with
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        // capped so a huge delay can't overflow into the past
+        long delayNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)), Long.MAX_VALUE / 2);
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + delayNanos);
+        pending.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return timeouts scheduled but not yet run or cancelled
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Wait for the next tick then run every timeout due by it, only ever called from one thread
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void tick() throws InterruptedException {
+        long deadline = tickNanos * (tick + 1);
+        long wait;
+        while ((wait = deadline - (System.nanoTime() - startTime)) > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+
+        removeCancelled();
+        transferScheduled();
+        wheel[(int) (tick & mask)].expire(deadline);
+        tick++;
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            // a timeout cancelled before it was transferred has no bucket, transferScheduled skips it
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferScheduled() {
+        // bounded so a flood of scheduling can't stall the tick
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout timeout = scheduled.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state != Timeout.WAITING) {
+                continue;
+            }
+            long due = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (due - tick) / wheel.length;
+            // already overdue timeouts go in the current bucket
+            wheel[(int) (Math.max(due, tick) & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Handle on a scheduled task
+     */
+    public final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline; // nanoseconds since the timer started
+        volatile int state = WAITING; // not private so the updater can reach it before Java 11
+
+        // owned by the ticker thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout previous;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the task already ran or was already cancelled
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, WAITING, CANCELLED)) {
+                return false;
+            }
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, WAITING, EXPIRED)) {
+                return;
+            }
+            pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("ERROR - uncaught exception in timer task : " + e, e);
+            }
+        }
+    }
+
+    // one updater rather than an AtomicInteger per timeout keeps millions of pending timeouts cheap
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    /**
+     * Doubly linked list of timeouts, so removal is O(1)
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Run every timeout in its last round and due by the deadline, count down the rest
+         */
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.next = null;
+            timeout.previous = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package activitystreamer.util;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Concurrent log-linear histogram of non-negative values, exact below 64 and within about 3% above.
+ * Any number of threads may record while another reads percentiles, recording never allocates or locks.
+ */
+public class Histogram {
+    private static final int SUB_BUCKETS = 32; // per power of two, sets the precision
+    private static final int LINEAR = SUB_BUCKETS * 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + 58 * SUB_BUCKETS);
+    private final AtomicLongArray summary = new AtomicLongArray(3); // count, max, sum
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexFor(value));
+        summary.incrementAndGet(0);
+        summary.addAndGet(2, value);
+        long max;
+        while (value > (max = summary.get(1)) && !summary.compareAndSet(1, max, value)) {
+            // retry until recorded
+        }
+    }
+
+    public long getCount() {
+        return summary.get(0);
+    }
+
+    public long getMax() {
+        return summary.get(1);
+    }
+
+    public long getSum() {
+        return summary.get(2);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket holding the percentile, 0 if nothing recorded
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    private static int indexFor(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        // shift so the value has 6 significant bits, top one always set
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -3,6 +3,9 @@ package activitystreamer.util;
 
 import org.json.JSONObject;
 
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Project : Activity Streamer Server
  * Author : Daniel Chan (mchan@student.unimelb.edu.au)
@@ -10,123 +13,280 @@ import org.json.JSONObject;
  */
 
 /**
- * Utility class to generate relevant JSON messages to send
+ * Utility class to generate relevant JSON messages to send.
+ * Messages are written straight into a per thread buffer and returned as encoded frames, messages that
+ * never change are built once and shared.
  */
 public class JsonCreator {
 
-    private static JSONObject baseJson(String command){
-        return new JSONObject().put("command", command);
+    private static final ThreadLocal<JsonWriter> writer = new ThreadLocal<JsonWriter>() {
+        @Override
+        protected JsonWriter initialValue() {
+            return new JsonWriter();
+        }
+    };
+
+    private static final Frame logout = baseJson("LOGOUT").end(false);
+    private static final ConcurrentHashMap<String, Frame> authenticateFrames = new ConcurrentHashMap<>();
+
+    private static JsonWriter baseJson(String command){
+        return writer.get().begin(command);
+    }
+
+    /**
+     * Tag a server to server message with the id it was first sent with, if it has one
+     */
+    private static JsonWriter messageId(JsonWriter json, long msgId){
+        return msgId != MessageIdCache.NO_ID ? json.field("msg_id", msgId) : json;
+    }
+
+    public static Frame authenticate(String secret){
+        // the server only ever uses its own secret, so this is built once
+        Frame frame = authenticateFrames.get(secret);
+        if (frame == null) {
+            frame = baseJson("AUTHENTICATE").field("secret", secret).end(false);
+            authenticateFrames.putIfAbsent(secret, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * @param extensions optional protocol extensions to offer, the server replies with EXTENSIONS if it knows them
+     */
+    public static Frame authenticate(String secret, List<String> extensions){
+        JsonWriter json = baseJson("AUTHENTICATE").field("secret", secret).fieldName("extensions").put('[');
+        for (int i = 0; i < extensions.size(); i++) {
+            if (i > 0) {
+                json.put(',');
+            }
+            json.string(extensions.get(i));
+        }
+        return json.put(']').end(false);
+    }
+
+    public static Frame invalidMessage(String info){
+        return baseJson("INVALID_MESSAGE").field("info", info).end(false);
+    }
+
+    public static Frame authenticationFail(String info){
+        return baseJson("AUTHENTICATION_FAIL").field("info", info).end(false);
+    }
+
+    public static Frame login(String username, String secret){
+        return baseJson("LOGIN").field("username", username).field("secret", secret).end(false);
+    }
+
+    public static Frame loginSuccess(String info){
+        return baseJson("LOGIN_SUCCESS").field("info", info).end(false);
+    }
+
+    /**
+     * @param seq        sequence number of the first live broadcast
+     * @param resumeFrom sequence number of the first broadcast replayed, or -1 if the client didn't ask
+     */
+    public static Frame loginSuccess(String info, long seq, long resumeFrom){
+        JsonWriter json = baseJson("LOGIN_SUCCESS").field("info", info).field("seq", seq);
+        if (resumeFrom >= 0) {
+            json.field("resume_from", resumeFrom);
+        }
+        return json.end(false);
+    }
+
+    public static Frame redirect(String hostname, int port){
+        return baseJson("REDIRECT").field("hostname", hostname).field("port", port).end(false);
     }
 
-    public static String authenticate(String secret){
-        JSONObject j = baseJson("AUTHENTICATE");
-        j.put("secret", secret);
-        return j.toString();
+    public static Frame loginFailed(String info){
+        return baseJson("LOGIN_FAILED").field("info", info).end(false);
     }
 
-    public static String invalidMessage(String info){
-        JSONObject j = baseJson("INVALID_MESSAGE");
-        j.put("info", info);
-        return j.toString();
+    public static Frame logout(){
+        return logout;
     }
 
-    public static String authenticationFail(String info){
-        JSONObject j = baseJson("AUTHENTICATION_FAIL");
-        j.put("info", info);
-        return j.toString();
+    public static Frame activityMessage(String username, String secret, JSONObject activity){
+        return baseJson("ACTIVITY_MESSAGE")
+                .field("username", username)
+                .field("secret", secret)
+                .rawField("activity", activity.toString())
+                .end(false);
     }
 
-    public static String login(String username, String secret){
-        JSONObject j = baseJson("LOGIN");
-        j.put("username", username);
-        j.put("secret", secret);
-        return j.toString();
+    /**
+     * @param interval milliseconds between this server's announces, for other servers' failure detectors
+     * @param msgId    id for other servers to recognise this announce by if it reaches them twice
+     * @param interest encoded BloomFilter of what this server's clients want, or null to leave out
+     */
+    public static Frame serverAnnounce(String id, int load, String hostname, int port, long interval, long msgId,
+                                       String interest){
+        JsonWriter json = messageId(baseJson("SERVER_ANNOUNCE"), msgId)
+                .field("id", id)
+                .field("load", load)
+                .field("hostname", hostname)
+                .field("port", port)
+                .field("interval", interval);
+        if (interest != null) {
+            json.field("interest", interest);
+        }
+        return json.end(false);
     }
 
-    public static String loginSuccess(String info){
-        JSONObject j = baseJson("LOGIN_SUCCESS");
-        j.put("info", info);
-        return j.toString();
+    /**
+     * Build the broadcast for a received ACTIVITY_MESSAGE by splicing the activity bytes as received after
+     * the injected authenticated_user field, the activity itself is never decoded
+     *
+     * @param message  received ACTIVITY_MESSAGE
+     * @param username authenticated user to add to the activity
+     * @param msgId    id for other servers to recognise the broadcast by
+     * @return activity broadcast frame
+     */
+    public static Frame activityBroadcast(Envelope message, String username, long msgId){
+        Envelope activity = message.getObject("activity");
+        JsonWriter j = messageId(baseJson("ACTIVITY_BROADCAST"), msgId).fieldName("activity");
+        j.put('{');
+        j.string("authenticated_user");
+        j.put(':');
+        j.string(username);
+        // any authenticated_user supplied by the client is replaced, as JSONObject.put did
+        activity.writeMembers(j, "authenticated_user");
+        j.put('}');
+        return j.end(true);
     }
 
-    public static String redirect(String hostname, int port){
-        JSONObject j = baseJson("REDIRECT");
-        j.put("hostname", hostname);
-        j.put("port", port);
-        return j.toString();
+    public static Frame activityBroadcast(JSONObject activity){
+        return baseJson("ACTIVITY_BROADCAST").rawField("activity", activity.toString()).end(true);
     }
 
-    public static String loginFailed(String info){
-        JSONObject j = baseJson("LOGIN_FAILED");
-        j.put("info", info);
-        return j.toString();
+    public static Frame register(String username, String secret){
+        return baseJson("REGISTER").field("username", username).field("secret", secret).end(false);
     }
 
-    public static String logout(){
-        return baseJson("LOGOUT").toString();
+    public static Frame registerFailed(String info){
+        return baseJson("REGISTER_FAILED").field("info", info).end(false);
     }
 
-    public static String activityMessage(String username, String secret, JSONObject activity){
-        JSONObject j = baseJson("ACTIVITY_MESSAGE");
-        j.put("username", username);
-        j.put("secret", secret);
-        j.put("activity", activity);
-        return j.toString();
+    public static Frame registerSuccess(String info){
+        return baseJson("REGISTER_SUCCESS").field("info", info).end(false);
     }
 
-    public static String serverAnnounce(String id, int load, String hostname, int port){
-        JSONObject j = baseJson("SERVER_ANNOUNCE");
-        j.put("id", id);
-        j.put("load", load);
-        j.put("hostname", hostname);
-        j.put("port", port);
-        return j.toString();
+    public static Frame lockRequest(String username, String secret, long msgId){
+        return lock("LOCK_REQUEST", username, secret, null, msgId);
     }
 
-    public static String activityBroadcast(JSONObject activity){
-        JSONObject j = baseJson("ACTIVITY_BROADCAST");
-        j.put("activity", activity);
-        return j.toString();
+    public static Frame lockDenied(String username, String secret, long msgId){
+        return lock("LOCK_DENIED", username, secret, null, msgId);
     }
 
-    public static String register(String username, String secret){
-        JSONObject j = baseJson("REGISTER");
-        j.put("username", username);
-        j.put("secret", secret);
-        return j.toString();
+    /**
+     * @param serverId this server, so the requester knows who has replied
+     */
+    public static Frame lockAllowed(String username, String secret, String serverId, long msgId){
+        return lock("LOCK_ALLOWED", username, secret, serverId, msgId);
     }
 
-    public static String registerFailed(String info){
-        JSONObject j = baseJson("REGISTER_FAILED");
-        j.put("info", info);
-        return j.toString();
+    /**
+     * @param command  LOCK_REQUEST, LOCK_DENIED or LOCK_ALLOWED
+     * @param serverId server which sent a LOCK_ALLOWED, or null
+     * @param msgId    id the message was first sent with, or NO_ID
+     */
+    public static Frame lock(String command, String username, String secret, String serverId, long msgId){
+        JsonWriter json = messageId(baseJson(command), msgId).field("username", username).field("secret", secret);
+        if (serverId != null) {
+            json.field("server_id", serverId);
+        }
+        return json.end(false);
     }
 
-    public static String registerSuccess(String info){
-        JSONObject j = baseJson("REGISTER_SUCCESS");
-        j.put("info", info);
-        return j.toString();
+    /**
+     * Several lock messages in one frame, equivalent to sending each in order
+     *
+     * @param locks command, username, secret, then server_id and decimal msg_id or null, of each message
+     */
+    public static Frame lockBatch(List<String[]> locks){
+        JsonWriter json = baseJson("LOCK_BATCH").fieldName("locks").put('[');
+        for (int i = 0; i < locks.size(); i++) {
+            String[] lock = locks.get(i);
+            if (i > 0) {
+                json.put(',');
+            }
+            json.put('{');
+            json.string("command");
+            json.put(':');
+            json.string(lock[0]);
+            json.put(',');
+            json.string("username");
+            json.put(':');
+            json.string(lock[1]);
+            json.put(',');
+            json.string("secret");
+            json.put(':');
+            json.string(lock[2]);
+            if (lock[3] != null) {
+                json.put(',');
+                json.string("server_id");
+                json.put(':');
+                json.string(lock[3]);
+            }
+            if (lock[4] != null) {
+                json.put(',');
+                json.string("msg_id");
+                json.put(':');
+                json.raw(lock[4]);
+            }
+            json.put('}');
+        }
+        return json.put(']').end(false);
     }
 
-    public static String lockRequest(String username, String secret){
-        JSONObject j = baseJson("LOCK_REQUEST");
-        j.put("username", username);
-        j.put("secret", secret);
-        return j.toString();
+    /**
+     * Reply to an AUTHENTICATE which offered extensions
+     *
+     * @param extensions the offered extensions which were accepted, possibly none
+     */
+    public static Frame extensions(List<String> extensions){
+        JsonWriter json = baseJson("EXTENSIONS").fieldName("extensions").put('[');
+        for (int i = 0; i < extensions.size(); i++) {
+            if (i > 0) {
+                json.put(',');
+            }
+            json.string(extensions.get(i));
+        }
+        return json.put(']').end(false);
     }
 
-    public static String lockDenied(String username, String secret){
-        JSONObject j = baseJson("LOCK_DENIED");
-        j.put("username", username);
-        j.put("secret", secret);
-        return j.toString();
+    /**
+     * One journalled activity in reply to HISTORY, built from the stored bytes without decoding the activity
+     *
+     * @param timestamp milliseconds since the epoch when this server journalled it
+     * @param activity  the activity as broadcast, with its authenticated_user
+     */
+    public static Frame historyItem(long timestamp, Envelope activity){
+        JsonWriter j = baseJson("HISTORY_ITEM").field("timestamp", timestamp).fieldName("activity");
+        j.put('{');
+        j.string("authenticated_user");
+        j.put(':');
+        j.string(activity.getString("authenticated_user"));
+        activity.writeMembers(j, "authenticated_user");
+        j.put('}');
+        return j.end(false);
     }
 
-    public static String lockAllowed(String username, String secret){
-        JSONObject j = baseJson("LOCK_ALLOWED");
-        j.put("username", username);
-        j.put("secret", secret);
-        return j.toString();
+    /**
+     * Ends the HISTORY_ITEMs sent for a HISTORY
+     *
+     * @param count  items sent
+     * @param before cursor to ask for the next page with, or -1 if there are no more
+     * @param info   why nothing could be sent, or null
+     */
+    public static Frame historyEnd(int count, long before, String info){
+        JsonWriter json = baseJson("HISTORY_END").field("count", count);
+        if (before >= 0) {
+            json.field("before", before);
+        }
+        if (info != null) {
+            json.field("info", info);
+        }
+        return json.end(false);
     }
 
     public static JSONObject processActivityObject(JSONObject activity, String username){
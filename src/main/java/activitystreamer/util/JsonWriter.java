@@ -0,0 +1,230 @@
+package activitystreamer.util;
+
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Reusable buffer that writes a flat JSON message straight to UTF-8 bytes, escaping strings the same way
+ * JSONObject.quote does so output is identical to what peers already receive. One per thread, see JsonCreator.
+ */
+final class JsonWriter {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buffer = new byte[512];
+    private int length = 0;
+    private boolean firstField = true;
+    private Metrics.Command command = Metrics.Command.OTHER;
+
+    /**
+     * Start a new message with its command field
+     *
+     * @param command protocol command
+     * @return this writer
+     */
+    JsonWriter begin(String command) {
+        length = 0;
+        firstField = true;
+        this.command = Metrics.Command.of(command);
+        put('{');
+        return field("command", command);
+    }
+
+    JsonWriter field(String key, String value) {
+        fieldName(key);
+        string(value);
+        return this;
+    }
+
+    JsonWriter field(String key, int value) {
+        return field(key, (long) value);
+    }
+
+    JsonWriter field(String key, long value) {
+        fieldName(key);
+        number(value);
+        return this;
+    }
+
+    /**
+     * Write an integer without going through a String
+     */
+    void number(long value) {
+        ensureCapacity(20);
+        if (value == Long.MIN_VALUE) {
+            utf8("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        int start = length;
+        do {
+            put((char) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        // digits were written least significant first
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+
+    /**
+     * Add a field whose value is already serialized JSON
+     *
+     * @param key   field name
+     * @param value serialized value
+     * @return this writer
+     */
+    JsonWriter rawField(String key, String value) {
+        fieldName(key);
+        utf8(value);
+        return this;
+    }
+
+    /**
+     * Start a field whose value will be written with raw/put calls
+     *
+     * @param key field name
+     * @return this writer
+     */
+    JsonWriter fieldName(String key) {
+        if (!firstField) {
+            put(',');
+        }
+        firstField = false;
+        string(key);
+        put(':');
+        return this;
+    }
+
+    JsonWriter raw(byte[] bytes, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(bytes, offset, buffer, length, count);
+        length += count;
+        return this;
+    }
+
+    /**
+     * @param serialized value already serialized as JSON
+     */
+    JsonWriter raw(String serialized) {
+        utf8(serialized);
+        return this;
+    }
+
+    JsonWriter put(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Close the message and copy it out as a frame
+     *
+     * @param activity whether the frame is an activity broadcast
+     * @return encoded frame
+     */
+    Frame end(boolean activity) {
+        put('}');
+        byte[] data = new byte[length + 1];
+        System.arraycopy(buffer, 0, data, 0, length);
+        data[length] = '\n';
+        // don't let one huge message pin a huge buffer on this thread forever
+        if (buffer.length > 64 * 1024) {
+            buffer = new byte[512];
+        }
+        return new Frame(data, activity, command);
+    }
+
+    /**
+     * Write a quoted, escaped string, mirrors JSONObject.quote
+     */
+    void string(String s) {
+        int n = s.length();
+        ensureCapacity(n + 2);
+        put('"');
+        char previous = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    put('\\').put(c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        put('\\');
+                    }
+                    put(c);
+                    break;
+                case '\b':
+                    put('\\').put('b');
+                    break;
+                case '\t':
+                    put('\\').put('t');
+                    break;
+                case '\n':
+                    put('\\').put('n');
+                    break;
+                case '\f':
+                    put('\\').put('f');
+                    break;
+                case '\r':
+                    put('\\').put('r');
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        ensureCapacity(6);
+                        put('\\').put('u');
+                        buffer[length++] = HEX[(c >> 12) & 0xf];
+                        buffer[length++] = HEX[(c >> 8) & 0xf];
+                        buffer[length++] = HEX[(c >> 4) & 0xf];
+                        buffer[length++] = HEX[c & 0xf];
+                    } else if (c < 0x80) {
+                        put(c);
+                    } else if (c < 0x800) {
+                        ensureCapacity(2);
+                        buffer[length++] = (byte) (0xc0 | (c >> 6));
+                        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        ensureCapacity(4);
+                        buffer[length++] = (byte) (0xf0 | (cp >> 18));
+                        buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                        buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                        buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+                    } else if (Character.isSurrogate(c)) {
+                        // unpaired surrogate, same replacement as String.getBytes
+                        put('?');
+                    } else {
+                        ensureCapacity(3);
+                        buffer[length++] = (byte) (0xe0 | (c >> 12));
+                        buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                        buffer[length++] = (byte) (0x80 | (c & 0x3f));
+                    }
+            }
+            previous = c;
+        }
+        put('"');
+    }
+
+    private void utf8(String s) {
+        byte[] bytes = s.getBytes(Frame.UTF8);
+        raw(bytes, 0, bytes.length);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] bigger = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+    }
+}
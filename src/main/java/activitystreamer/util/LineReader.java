@@ -0,0 +1,81 @@
+package activitystreamer.util;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Reads newline terminated lines as raw bytes, so they can be forwarded without decoding and re-encoding
+ */
+public class LineReader {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+
+    public LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Block until a full line is available
+     *
+     * @return line including its '\n' terminator (added if the stream ended without one), or null at end of stream
+     * @throws IOException if reading from the stream fails
+     */
+    public byte[] readLine() throws IOException {
+        lineLength = 0;
+        while (true) {
+            if (position == limit) {
+                int read = in.read(buffer);
+                if (read <= 0) {
+                    position = limit = 0;
+                    return lineLength > 0 ? copyLine(false) : null;
+                }
+                position = 0;
+                limit = read;
+            }
+
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            if (position < limit) {
+                position++;
+                append(start, position - start);
+                return copyLine(true);
+            }
+            append(start, position - start);
+        }
+    }
+
+    private void append(int start, int length) {
+        if (lineLength + length > line.length) {
+            byte[] bigger = new byte[Math.max(line.length * 2, lineLength + length)];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+        }
+        System.arraycopy(buffer, start, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private byte[] copyLine(boolean terminated) {
+        byte[] copy = new byte[terminated ? lineLength : lineLength + 1];
+        System.arraycopy(line, 0, copy, 0, lineLength);
+        if (!terminated) {
+            copy[lineLength] = '\n';
+        }
+        return copy;
+    }
+}
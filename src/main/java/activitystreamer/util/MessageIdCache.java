@@ -0,0 +1,121 @@
+package activitystreamer.util;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Bounded set of recently seen 64 bit message ids, so a message reaching this server over more than one path
+ * is only handled once. Ids are remembered for a time to live, after that the same id counts as new.
+ * <p>
+ * Ids and the time each was seen live in two flat arrays, nothing is allocated per id. An id hashes to a
+ * bucket of WAYS neighbouring slots and goes in the first one that is unused or expired, if every slot holds
+ * a live id the oldest is evicted, so a burst beyond capacity loses the oldest ids early rather than growing.
+ * Buckets are locked in stripes so concurrent connections rarely contend.
+ */
+public class MessageIdCache {
+    public static final long NO_ID = 0; // never assigned, stands in for a message without an id
+    private static final int WAYS = 8;
+    private static final int STRIPES = 64;
+
+    private final long[] ids;
+    private final long[] seenAt; // milliseconds since start, plus one so 0 is never used
+    private final int bucketMask;
+    private final long ttl;
+    private final long startTime = System.nanoTime();
+    private final Object[] locks = new Object[STRIPES];
+    private final AtomicLong duplicates = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * @param capacity ids remembered, rounded up to a power of two of at least WAYS
+     * @param ttl      milliseconds to remember an id for
+     */
+    public MessageIdCache(int capacity, long ttl) {
+        int buckets = Integer.highestOneBit(Math.max(1, (capacity - 1) / WAYS)) << 1;
+        ids = new long[buckets * WAYS];
+        seenAt = new long[buckets * WAYS];
+        bucketMask = buckets - 1;
+        this.ttl = ttl;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Remember an id
+     *
+     * @param id message id
+     * @return false if it was already seen within the time to live
+     */
+    public boolean add(long id) {
+        int bucket = (int) mix(id) & bucketMask;
+        int base = bucket * WAYS;
+        long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + 1;
+        synchronized (locks[bucket & (STRIPES - 1)]) {
+            int free = -1;
+            int oldest = base;
+            for (int i = base; i < base + WAYS; i++) {
+                long seen = seenAt[i];
+                if (seen == 0) {
+                    // slots are filled in order, so nothing after a never used one
+                    if (free < 0) {
+                        free = i;
+                    }
+                    break;
+                }
+                boolean live = now - seen < ttl;
+                if (live && ids[i] == id) {
+                    duplicates.incrementAndGet();
+                    return false;
+                }
+                if (!live && free < 0) {
+                    free = i;
+                }
+                if (seen < seenAt[oldest]) {
+                    oldest = i;
+                }
+            }
+            if (free < 0) {
+                free = oldest;
+                evictions.incrementAndGet();
+            }
+            ids[free] = id;
+            seenAt[free] = now;
+            return true;
+        }
+    }
+
+    /**
+     * @return ids added again while still remembered
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return ids forgotten before their time to live because their bucket was full
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int capacity() {
+        return ids.length;
+    }
+
+    /**
+     * Bijective 64 bit mixer (the splitmix64 finalizer), spreads sequential values over every bit
+     */
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
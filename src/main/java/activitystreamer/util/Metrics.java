@@ -0,0 +1,195 @@
+package activitystreamer.util;
+
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Process wide metrics. Counters and histograms are fixed arrays of atomics, so recording is lock free and
+ * never allocates. Gauges are read when metrics are exposed, see MetricsEndpoint.
+ */
+public final class Metrics {
+    private static final String PREFIX = "activitystreamer_";
+
+    private static final AtomicLongArray messagesIn = new AtomicLongArray(Command.values().length);
+    private static final AtomicLongArray messagesOut = new AtomicLongArray(Command.values().length);
+    private static final AtomicLongArray bytesIn = new AtomicLongArray(Peer.values().length);
+    private static final AtomicLongArray bytesOut = new AtomicLongArray(Peer.values().length);
+    private static final Histogram processTime = new Histogram();
+    private static final Histogram fanOutTime = new Histogram();
+    private static final List<NamedGauge> gauges = new CopyOnWriteArrayList<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * A line was received
+     *
+     * @param peer  type of connection it was received on
+     * @param bytes length including terminator
+     */
+    public static void received(Peer peer, int bytes) {
+        bytesIn.addAndGet(peer.ordinal(), bytes);
+    }
+
+    /**
+     * A received message was parsed
+     *
+     * @param frame received frame, tagged with its command
+     */
+    public static void parsed(Frame frame) {
+        messagesIn.incrementAndGet(frame.command().ordinal());
+    }
+
+    /**
+     * A received line could not be parsed
+     */
+    public static void unparsable() {
+        messagesIn.incrementAndGet(Command.OTHER.ordinal());
+    }
+
+    /**
+     * A frame was queued on a connection
+     *
+     * @param peer  type of connection it was queued on
+     * @param frame queued frame
+     */
+    public static void sent(Peer peer, Frame frame) {
+        messagesOut.incrementAndGet(frame.command().ordinal());
+        bytesOut.addAndGet(peer.ordinal(), frame.length());
+    }
+
+    /**
+     * @param nanos time taken by a connection to handle one received message
+     */
+    public static void processed(long nanos) {
+        processTime.record(nanos);
+    }
+
+    /**
+     * @param nanos time taken to encode one message and queue it on every recipient
+     */
+    public static void fannedOut(long nanos) {
+        fanOutTime.record(nanos);
+    }
+
+    /**
+     * Register a gauge, normally once at startup
+     *
+     * @param name   metric name without prefix
+     * @param labels label set such as type="client", or null
+     * @param gauge  reads the current value
+     */
+    public static void gauge(String name, String labels, Gauge gauge) {
+        gauges.add(new NamedGauge(name, labels, gauge));
+    }
+
+    /**
+     * @return every metric in the Prometheus plain text exposition format
+     */
+    public static String expose() {
+        StringBuilder out = new StringBuilder(4096);
+        counters(out, "messages_in_total", "command", messagesIn, Command.values());
+        counters(out, "messages_out_total", "command", messagesOut, Command.values());
+        counters(out, "bytes_in_total", "type", bytesIn, Peer.values());
+        counters(out, "bytes_out_total", "type", bytesOut, Peer.values());
+        summary(out, "process_time_nanoseconds", processTime);
+        summary(out, "fanout_time_nanoseconds", fanOutTime);
+
+        String typed = null;
+        for (NamedGauge gauge : gauges) {
+            if (!gauge.name.equals(typed)) {
+                out.append("# TYPE ").append(PREFIX).append(gauge.name).append(" gauge\n");
+                typed = gauge.name;
+            }
+            out.append(PREFIX).append(gauge.name);
+            if (gauge.labels != null) {
+                out.append('{').append(gauge.labels).append('}');
+            }
+            out.append(' ').append(gauge.gauge.value()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void counters(StringBuilder out, String name, String label, AtomicLongArray values,
+                                 Enum<?>[] keys) {
+        out.append("# TYPE ").append(PREFIX).append(name).append(" counter\n");
+        for (Enum<?> key : keys) {
+            out.append(PREFIX).append(name).append('{').append(label).append("=\"")
+                    .append(key.name().toLowerCase()).append("\"} ").append(values.get(key.ordinal())).append('\n');
+        }
+    }
+
+    private static void summary(StringBuilder out, String name, Histogram histogram) {
+        out.append("# TYPE ").append(PREFIX).append(name).append(" summary\n");
+        for (String quantile : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+            out.append(PREFIX).append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.percentile(Double.parseDouble(quantile) * 100)).append('\n');
+        }
+        out.append(PREFIX).append(name).append("_sum ").append(histogram.getSum()).append('\n');
+        out.append(PREFIX).append(name).append("_count ").append(histogram.getCount()).append('\n');
+        out.append(PREFIX).append(name).append("_max ").append(histogram.getMax()).append('\n');
+    }
+
+    /**
+     * Current value of something, read at exposition time
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    private static class NamedGauge {
+        final String name;
+        final String labels;
+        final Gauge gauge;
+
+        NamedGauge(String name, String labels, Gauge gauge) {
+            this.name = name;
+            this.labels = labels;
+            this.gauge = gauge;
+        }
+    }
+
+    /**
+     * Type of connection traffic is counted against, connections are UNKNOWN until they log in or authenticate
+     */
+    public enum Peer {
+        CLIENT, SERVER, UNKNOWN
+    }
+
+    /**
+     * Protocol commands, anything else is OTHER
+     */
+    public enum Command {
+        AUTHENTICATE, AUTHENTICATION_FAIL, INVALID_MESSAGE, LOGIN, LOGIN_SUCCESS, LOGIN_FAILED, REDIRECT, LOGOUT,
+        ACTIVITY_MESSAGE, ACTIVITY_BROADCAST, SERVER_ANNOUNCE, REGISTER, REGISTER_FAILED, REGISTER_SUCCESS,
+        LOCK_REQUEST, LOCK_DENIED, LOCK_ALLOWED, LOCK_BATCH, EXTENSIONS, HISTORY, HISTORY_ITEM, HISTORY_END,
+        SUBSCRIBE, UNSUBSCRIBE, OTHER;
+
+        private static final Map<String, Command> byName = new HashMap<>();
+
+        static {
+            for (Command command : values()) {
+                byName.put(command.name(), command);
+            }
+        }
+
+        /**
+         * @param name command as sent on the wire
+         * @return matching command, or OTHER
+         */
+        public static Command of(String name) {
+            Command command = byName.get(name);
+            return command == null ? OTHER : command;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package activitystreamer.util;
+
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Phi accrual failure detector for one source of heartbeats (Hayashibara et al.). Rather than a yes or no
+ * after a fixed timeout it gives phi, how unlikely it is that the next heartbeat is still on its way given
+ * the intervals seen so far, -log10 of that probability, so phi 8 means a one in 10^8 chance of being wrong
+ * to suspect it. Intervals are assumed normally distributed, using the logistic approximation of the CDF.
+ */
+public class PhiAccrualDetector {
+    private final long[] intervals;
+    private final long minStdDeviation;
+    private final int warmup;
+    private int heartbeats = 0;
+    private int count = 0;
+    private int next = 0;
+    private double sum = 0;
+    private double sumSquares = 0;
+    private long lastHeartbeat;
+
+    /**
+     * @param window          intervals remembered
+     * @param firstEstimate   expected interval in milliseconds, used until real ones have been seen
+     * @param minStdDeviation floor on the deviation so very regular heartbeats don't make phi hair trigger
+     * @param now             time of the first heartbeat in milliseconds
+     */
+    public PhiAccrualDetector(int window, long firstEstimate, long minStdDeviation, long now) {
+        this(window, firstEstimate, minStdDeviation, now, 0);
+    }
+
+    /**
+     * @param window          intervals remembered
+     * @param firstEstimate   expected interval in milliseconds, used until real ones have been seen
+     * @param minStdDeviation floor on the deviation so very regular heartbeats don't make phi hair trigger
+     * @param now             time of the first heartbeat in milliseconds
+     * @param warmup          heartbeats before the source can be suspected at all, for when the estimate is
+     *                        only a guess
+     */
+    public PhiAccrualDetector(int window, long firstEstimate, long minStdDeviation, long now, int warmup) {
+        intervals = new long[Math.max(2, window)];
+        this.minStdDeviation = Math.max(1, minStdDeviation);
+        this.warmup = warmup;
+        lastHeartbeat = now;
+        // seeded with a spread either side of the estimate, replaced as real intervals arrive
+        long spread = firstEstimate / 4;
+        add(firstEstimate - spread);
+        add(firstEstimate + spread);
+    }
+
+    /**
+     * @param now arrival time in milliseconds
+     */
+    public synchronized void heartbeat(long now) {
+        add(Math.max(0, now - lastHeartbeat));
+        lastHeartbeat = now;
+        if (heartbeats < warmup) {
+            heartbeats++;
+        }
+    }
+
+    /**
+     * @param now time in milliseconds
+     * @return suspicion level that the source has failed, 0 just after a heartbeat or while warming up
+     */
+    public synchronized double phi(long now) {
+        if (heartbeats < warmup) {
+            return 0;
+        }
+        double mean = sum / count;
+        double variance = sumSquares / count - mean * mean;
+        double stdDeviation = Math.max(Math.sqrt(Math.max(0, variance)), minStdDeviation);
+
+        double y = ((now - lastHeartbeat) - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        // infinite once long overdue, which is past any threshold
+        return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    private void add(long interval) {
+        if (count == intervals.length) {
+            long oldest = intervals[next];
+            sum -= oldest;
+            sumSquares -= (double) oldest * oldest;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        sumSquares += (double) interval * interval;
+    }
+}
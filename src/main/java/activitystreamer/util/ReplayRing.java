@@ -0,0 +1,230 @@
+package activitystreamer.util;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * The most recent activity broadcasts sent to clients, numbered in the order they were sent, so a client
+ * that reconnects can be sent what it missed.
+ * <p>
+ * Frames are copied into one direct buffer allocated up front, each as [length][msg_id][bytes], wrapping to
+ * the start when one doesn't fit before the end and overwriting the oldest. Positions are kept as absolute
+ * byte counts so an entry is still there exactly while it is within capacity bytes of the write position.
+ * An open addressed table from msg_id to sequence number, kept as entries come and go, finds where a client
+ * resuming by msg_id left off without scanning the ring.
+ * Not thread safe by itself, callers lock the ring so the numbering matches the order clients are sent frames.
+ */
+public class ReplayRing {
+    private static final int HEADER = 12;
+
+    private final ByteBuffer data;
+    private final int capacity;
+    private final long[] starts; // absolute position of each retained entry, by sequence number
+    private final int mask;
+    private final long[] ids; // msg_id by slot, linear probing
+    private final long[] seqs; // sequence number of the entry with that id, 0 for an empty slot
+    private final int idMask;
+    private long nextSeq = 1;
+    private long oldestSeq = 1;
+    private long writePosition = 0;
+
+    /**
+     * @param capacity bytes of frames to keep
+     */
+    public ReplayRing(int capacity) {
+        this.capacity = capacity;
+        data = ByteBuffer.allocateDirect(capacity);
+        // room for an entry per 64 bytes, smaller than any broadcast
+        int entries = Integer.highestOneBit(Math.max(16, capacity / 64 - 1)) << 1;
+        starts = new long[entries];
+        mask = entries - 1;
+        // at most half full
+        ids = new long[entries * 2];
+        seqs = new long[entries * 2];
+        idMask = entries * 2 - 1;
+    }
+
+    /**
+     * Number a broadcast and keep it
+     *
+     * @param broadcast activity broadcast as sent to servers
+     * @param msgId     id it was sent with, or NO_ID
+     * @return the broadcast as sent to clients, with its sequence number added
+     */
+    public Frame append(Frame broadcast, long msgId) {
+        long seq = nextSeq++;
+        Frame sequenced = sequenced(broadcast, seq);
+        byte[] bytes = sequenced.array();
+        int size = HEADER + bytes.length;
+        if (size > capacity) {
+            // can't be kept, so nothing before it can be replayed either
+            oldestSeq = nextSeq;
+            Arrays.fill(seqs, 0);
+            return sequenced;
+        }
+
+        int position = (int) (writePosition % capacity);
+        if (position + size > capacity) {
+            writePosition += capacity - position;
+            position = 0;
+        }
+        // drop whatever this overwrites, and the oldest entry once the index is full
+        long end = writePosition + size;
+        while (oldestSeq < seq &&
+                (starts[(int) (oldestSeq & mask)] < end - capacity || seq - oldestSeq >= starts.length)) {
+            unindex(oldestSeq);
+            oldestSeq++;
+        }
+
+        data.putInt(position, bytes.length);
+        data.putLong(position + 4, msgId);
+        data.position(position + HEADER);
+        data.put(bytes);
+        starts[(int) (seq & mask)] = writePosition;
+        writePosition = end;
+        if (msgId != MessageIdCache.NO_ID) {
+            index(msgId, seq);
+        }
+        return sequenced;
+    }
+
+    /**
+     * @return sequence number the next broadcast will get
+     */
+    public long nextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * @return oldest sequence number still kept, nextSeq if none are
+     */
+    public long oldestSeq() {
+        return oldestSeq;
+    }
+
+    /**
+     * @return bytes of frames currently kept
+     */
+    public long retainedBytes() {
+        return oldestSeq < nextSeq ? writePosition - starts[(int) (oldestSeq & mask)] : 0;
+    }
+
+    /**
+     * Where to resume for a client which last saw a broadcast with the given id, eg. on another server
+     *
+     * @param msgId id of the last broadcast the client saw
+     * @return sequence number of the broadcast after it, or the oldest kept if it isn't here
+     */
+    public long after(long msgId) {
+        if (msgId != MessageIdCache.NO_ID) {
+            for (int slot = slotFor(msgId); seqs[slot] != 0; slot = (slot + 1) & idMask) {
+                if (ids[slot] == msgId) {
+                    return seqs[slot] + 1;
+                }
+            }
+        }
+        return oldestSeq;
+    }
+
+    /**
+     * @param from     first sequence number wanted
+     * @param maxBytes most to replay, the newest broadcasts are kept if they don't all fit
+     * @return first sequence number that will be replayed, nextSeq if none
+     */
+    public long firstReplayable(long from, long maxBytes) {
+        long first = Math.min(Math.max(from, oldestSeq), nextSeq);
+        // entries start further along as seq grows, so search for the first one within maxBytes
+        long last = nextSeq;
+        while (first < last) {
+            long middle = (first + last) >>> 1;
+            if (writePosition - starts[(int) (middle & mask)] > maxBytes) {
+                first = middle + 1;
+            } else {
+                last = middle;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * @param seq sequence number between oldestSeq and nextSeq
+     * @return copy of the broadcast as it was sent to clients
+     */
+    public Frame get(long seq) {
+        int position = (int) (starts[(int) (seq & mask)] % capacity);
+        byte[] bytes = new byte[data.getInt(position)];
+        data.position(position + HEADER);
+        data.get(bytes);
+        return new Frame(bytes, true, Metrics.Command.ACTIVITY_BROADCAST);
+    }
+
+    private void index(long msgId, long seq) {
+        int slot = slotFor(msgId);
+        while (seqs[slot] != 0 && ids[slot] != msgId) {
+            slot = (slot + 1) & idMask;
+        }
+        ids[slot] = msgId;
+        seqs[slot] = seq;
+    }
+
+    /**
+     * Drop an entry's id as it leaves the ring, shifting back any later entries of its probe run so lookups
+     * never need tombstones
+     */
+    private void unindex(long seq) {
+        long msgId = data.getLong((int) (starts[(int) (seq & mask)] % capacity) + 4);
+        if (msgId == MessageIdCache.NO_ID) {
+            return;
+        }
+        int slot = slotFor(msgId);
+        while (seqs[slot] != 0 && ids[slot] != msgId) {
+            slot = (slot + 1) & idMask;
+        }
+        if (seqs[slot] != seq) {
+            // not there, or a repeated id now pointing at a newer entry
+            return;
+        }
+        int gap = slot;
+        for (int next = (gap + 1) & idMask; seqs[next] != 0; next = (next + 1) & idMask) {
+            int home = slotFor(ids[next]);
+            // move it into the gap unless its home lies cyclically after the gap, up to where it is
+            if (((next - home) & idMask) >= ((next - gap) & idMask)) {
+                ids[gap] = ids[next];
+                seqs[gap] = seqs[next];
+                gap = next;
+            }
+        }
+        seqs[gap] = 0;
+    }
+
+    private int slotFor(long msgId) {
+        return (int) MessageIdCache.mix(msgId) & idMask;
+    }
+
+    /**
+     * @return the frame with "seq" added as its first field
+     */
+    private static Frame sequenced(Frame broadcast, long seq) {
+        byte[] original = broadcast.array();
+        int brace = 0;
+        while (brace < original.length && original[brace] != '{') {
+            brace++;
+        }
+        if (brace == original.length) {
+            return broadcast.asActivity();
+        }
+        byte[] prefix = ("{\"seq\":" + seq + ",").getBytes(Frame.UTF8);
+        int rest = original.length - brace - 1;
+        byte[] bytes = new byte[prefix.length + rest];
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        System.arraycopy(original, brace + 1, bytes, prefix.length, rest);
+        return new Frame(bytes, true, broadcast.command());
+    }
+}
@@ -6,9 +6,12 @@ import org.apache.logging.log4j.Logger;
 
 import java.math.BigInteger;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Project : Activity Streamer Server
@@ -26,9 +29,45 @@ public class Settings {
     private static String secret = null;
     private static String remoteHostname = null;
     private static int remotePort = 3780;
+    private static List<InetSocketAddress> peers = new ArrayList<>(); // further servers to connect to, for a mesh
 
 
     private static int activityInterval = 5000; // milliseconds
+    private static long registrationTimeout = 10000; // milliseconds to wait for every lock reply
+    private static long idleTimeout = 0; // milliseconds without receiving anything before closing, 0 for never
+    private static int lockBatch = 0; // lock messages per LOCK_BATCH frame to servers which accept it, 0 for off
+    private static long lockBatchWindow = 5; // milliseconds to wait for more lock messages before sending a batch
+    private static double phiThreshold = 8; // suspicion level at which a silent server is dropped, 0 for never
+    private static int dedupCapacity = 1 << 19; // server message ids remembered to drop copies arriving by another path
+    private static long dedupTtl = 10000; // milliseconds a message id is remembered for
+    private static int replayBytes = 0; // recent client broadcasts kept off heap for clients resuming, 0 for off
+
+    private static Transport transport = Transport.THREAD;
+    private static ThreadMode threadMode = ThreadMode.PLATFORM;
+    private static int ioThreads = Runtime.getRuntime().availableProcessors();
+    private static int registrationThreads = Runtime.getRuntime().availableProcessors();
+
+    private static boolean pipeline = false; // staged processing instead of inline on the connection thread
+    private static int[] stageThreads = {2, 2, 2, 2}; // decode, validate, route, encode
+    private static int stageQueue = 1024; // queued messages per stage worker
+
+    private static long outboundHighWater = 4 * 1024 * 1024; // bytes queued for a single connection
+    private static long outboundLowWater = 1024 * 1024;
+    private static long overflowGrace = 0; // milliseconds over the high water mark before applying policy
+    private static OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    private static int metricsPort = 0; // loopback port for the metrics endpoint, 0 for none
+
+    private static long batchWindow = 0; // microseconds to wait for more messages before flushing, 0 for per tick
+    private static int maxBatchBytes = 64 * 1024;
+
+    private static UserStore userStore = UserStore.HEAP;
+    private static String userDirectory = null; // where registered users are persisted, null to keep them in memory
+    private static Durability durability = Durability.SYNC;
+    private static int snapshotEvery = 10000; // user log records between snapshots
+    private static String journalDirectory = null; // where broadcast activities are journalled, null for off
+    private static long journalRoll = 3600000; // milliseconds before starting a new journal segment
+    private static long journalRetention = 86400000; // milliseconds activities are kept in the journal
 
     private static void help(Options options){
         String header = "An ActivityStream Server for Unimelb COMP90015\n\n";
@@ -71,6 +110,28 @@ public class Settings {
         Settings.remoteHostname = remoteHostname;
     }
 
+    public static List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    /**
+     * @param peers comma separated hostname:port of each server
+     * @throws IllegalArgumentException if any isn't hostname:port
+     */
+    public static void setPeers(String peers) {
+        List<InetSocketAddress> parsed = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("missing port in " + peer);
+            }
+            // NumberFormatException is an IllegalArgumentException, as is a port out of range
+            parsed.add(InetSocketAddress.createUnresolved(peer.substring(0, colon).trim(),
+                    Integer.parseInt(peer.substring(colon + 1).trim())));
+        }
+        Settings.peers = parsed;
+    }
+
     public static int getActivityInterval() {
         return activityInterval;
     }
@@ -79,6 +140,312 @@ public class Settings {
         Settings.activityInterval = activityInterval;
     }
 
+    public static ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    public static void setThreadMode(ThreadMode threadMode) {
+        if (threadMode == ThreadMode.VIRTUAL && !ConnectionThreads.virtualSupported()) {
+            log.error("virtual threads are not supported by this JVM, using " + getThreadMode().name().toLowerCase());
+        } else {
+            Settings.threadMode = threadMode;
+        }
+    }
+
+    public static Transport getTransport() {
+        return transport;
+    }
+
+    public static void setTransport(Transport transport) {
+        Settings.transport = transport;
+    }
+
+    public static int getIoThreads() {
+        return ioThreads;
+    }
+
+    public static void setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            log.error("supplied io thread count " + ioThreads + " must be at least 1, using " + getIoThreads());
+        } else {
+            Settings.ioThreads = ioThreads;
+        }
+    }
+
+    public static int getRegistrationThreads() {
+        return registrationThreads;
+    }
+
+    public static void setRegistrationThreads(int registrationThreads) {
+        if (registrationThreads < 1) {
+            log.error("supplied registration thread count " + registrationThreads + " must be at least 1, using " + getRegistrationThreads());
+        } else {
+            Settings.registrationThreads = registrationThreads;
+        }
+    }
+
+    public static boolean isPipeline() {
+        return pipeline;
+    }
+
+    public static void setPipeline(boolean pipeline) {
+        Settings.pipeline = pipeline;
+    }
+
+    /**
+     * @param stage pipeline stage
+     * @return worker threads for the stage
+     */
+    public static int getStageThreads(Stage stage) {
+        return stageThreads[stage.ordinal()];
+    }
+
+    public static void setStageThreads(Stage stage, int threads) {
+        if (threads < 1) {
+            log.error("supplied " + stage.name().toLowerCase() + " thread count " + threads + " must be at least 1, using " + getStageThreads(stage));
+        } else {
+            stageThreads[stage.ordinal()] = threads;
+        }
+    }
+
+    public static int getStageQueue() {
+        return stageQueue;
+    }
+
+    public static void setStageQueue(int stageQueue) {
+        if (stageQueue < 1) {
+            log.error("supplied stage queue size " + stageQueue + " must be at least 1, using " + getStageQueue());
+        } else {
+            Settings.stageQueue = stageQueue;
+        }
+    }
+
+    public static long getOutboundHighWater() {
+        return outboundHighWater;
+    }
+
+    public static long getOutboundLowWater() {
+        return outboundLowWater;
+    }
+
+    public static void setOutboundWaterMarks(long highWater, long lowWater) {
+        if (lowWater < 0 || highWater < lowWater) {
+            log.error("supplied outbound water marks " + highWater + "/" + lowWater + " are invalid, using " +
+                    getOutboundHighWater() + "/" + getOutboundLowWater());
+        } else {
+            Settings.outboundHighWater = highWater;
+            Settings.outboundLowWater = lowWater;
+        }
+    }
+
+    public static long getOverflowGrace() {
+        return overflowGrace;
+    }
+
+    public static void setOverflowGrace(long overflowGrace) {
+        Settings.overflowGrace = Math.max(0, overflowGrace);
+    }
+
+    public static OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public static void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        Settings.overflowPolicy = overflowPolicy;
+    }
+
+    public static int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public static void setMetricsPort(int metricsPort) {
+        if (metricsPort < 0 || metricsPort > 65535) {
+            log.error("supplied metrics port " + metricsPort + " is out of range, using " + getMetricsPort());
+        } else {
+            Settings.metricsPort = metricsPort;
+        }
+    }
+
+    public static long getRegistrationTimeout() {
+        return registrationTimeout;
+    }
+
+    public static void setRegistrationTimeout(long registrationTimeout) {
+        if (registrationTimeout < 1) {
+            log.error("supplied registration timeout " + registrationTimeout + " must be at least 1, using " + getRegistrationTimeout());
+        } else {
+            Settings.registrationTimeout = registrationTimeout;
+        }
+    }
+
+    public static long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public static void setIdleTimeout(long idleTimeout) {
+        Settings.idleTimeout = Math.max(0, idleTimeout);
+    }
+
+    public static int getLockBatch() {
+        return lockBatch;
+    }
+
+    public static void setLockBatch(int lockBatch) {
+        Settings.lockBatch = Math.max(0, lockBatch);
+    }
+
+    public static long getLockBatchWindow() {
+        return lockBatchWindow;
+    }
+
+    public static void setLockBatchWindow(long lockBatchWindow) {
+        if (lockBatchWindow < 1) {
+            log.error("supplied lock batch window " + lockBatchWindow + " must be at least 1, using " + getLockBatchWindow());
+        } else {
+            Settings.lockBatchWindow = lockBatchWindow;
+        }
+    }
+
+    public static double getPhiThreshold() {
+        return phiThreshold;
+    }
+
+    public static void setPhiThreshold(double phiThreshold) {
+        if (phiThreshold < 0 || Double.isNaN(phiThreshold)) {
+            log.error("supplied phi threshold " + phiThreshold + " must not be negative, using " + getPhiThreshold());
+        } else {
+            Settings.phiThreshold = phiThreshold;
+        }
+    }
+
+    public static int getDedupCapacity() {
+        return dedupCapacity;
+    }
+
+    public static void setDedupCapacity(int dedupCapacity) {
+        if (dedupCapacity < 1) {
+            log.error("supplied dedup capacity " + dedupCapacity + " must be at least 1, using " + getDedupCapacity());
+        } else {
+            Settings.dedupCapacity = dedupCapacity;
+        }
+    }
+
+    public static long getDedupTtl() {
+        return dedupTtl;
+    }
+
+    public static void setDedupTtl(long dedupTtl) {
+        if (dedupTtl < 1) {
+            log.error("supplied dedup ttl " + dedupTtl + " must be at least 1, using " + getDedupTtl());
+        } else {
+            Settings.dedupTtl = dedupTtl;
+        }
+    }
+
+    public static int getReplayBytes() {
+        return replayBytes;
+    }
+
+    public static void setReplayBytes(int replayBytes) {
+        if (replayBytes < 0) {
+            log.error("supplied replay size " + replayBytes + " must not be negative, using " + getReplayBytes());
+        } else {
+            Settings.replayBytes = replayBytes;
+        }
+    }
+
+    public static UserStore getUserStore() {
+        return userStore;
+    }
+
+    public static void setUserStore(UserStore userStore) {
+        Settings.userStore = userStore;
+    }
+
+    public static String getUserDirectory() {
+        return userDirectory;
+    }
+
+    public static void setUserDirectory(String userDirectory) {
+        Settings.userDirectory = userDirectory;
+    }
+
+    public static Durability getDurability() {
+        return durability;
+    }
+
+    public static void setDurability(Durability durability) {
+        Settings.durability = durability;
+    }
+
+    public static int getSnapshotEvery() {
+        return snapshotEvery;
+    }
+
+    public static void setSnapshotEvery(int snapshotEvery) {
+        if (snapshotEvery < 1) {
+            log.error("supplied snapshot interval " + snapshotEvery + " must be at least 1, using " + getSnapshotEvery());
+        } else {
+            Settings.snapshotEvery = snapshotEvery;
+        }
+    }
+
+    public static String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public static void setJournalDirectory(String journalDirectory) {
+        Settings.journalDirectory = journalDirectory;
+    }
+
+    public static long getJournalRoll() {
+        return journalRoll;
+    }
+
+    public static void setJournalRoll(long journalRoll) {
+        if (journalRoll < 1) {
+            log.error("supplied journal roll interval " + journalRoll + " must be at least 1, using " + getJournalRoll());
+        } else {
+            Settings.journalRoll = journalRoll;
+        }
+    }
+
+    public static long getJournalRetention() {
+        return journalRetention;
+    }
+
+    public static void setJournalRetention(long journalRetention) {
+        if (journalRetention < 1) {
+            log.error("supplied journal retention " + journalRetention + " must be at least 1, using " + getJournalRetention());
+        } else {
+            Settings.journalRetention = journalRetention;
+        }
+    }
+
+    public static long getBatchWindow() {
+        return batchWindow;
+    }
+
+    public static void setBatchWindow(long batchWindow) {
+        if (batchWindow < 0) {
+            log.error("supplied batch window " + batchWindow + " must not be negative, using " + getBatchWindow());
+        } else {
+            Settings.batchWindow = batchWindow;
+        }
+    }
+
+    public static int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public static void setMaxBatchBytes(int maxBatchBytes) {
+        if (maxBatchBytes < 1) {
+            log.error("supplied max batch size " + maxBatchBytes + " must be at least 1, using " + getMaxBatchBytes());
+        } else {
+            Settings.maxBatchBytes = maxBatchBytes;
+        }
+    }
+
     public static String getServerId() {
         return serverId;
     }
@@ -125,8 +492,38 @@ public class Settings {
         options.addOption("lp",true,"local port number");
         options.addOption("rh",true,"remote hostname");
         options.addOption("rp",true,"remote port number");
+        options.addOption("peers",true,"further servers to connect to as comma separated hostname:port, for redundant links");
         options.addOption("a",true,"activity interval in milliseconds");
         options.addOption("s",true,"remote secret for the server to use");
+        options.addOption("transport",true,"connection transport, thread (default) or nio");
+        options.addOption("threads",true,"thread transport connection threads, platform (default) or virtual (needs Java 21+)");
+        options.addOption("iothreads",true,"number of nio event loop threads, defaults to core count");
+        options.addOption("regthreads",true,"number of registration/lock worker stripes, defaults to core count");
+        options.addOption("pipeline",false,"process messages in decode/validate/route/encode stages with their own workers");
+        options.addOption("stagethreads",true,"pipeline workers per stage as decode,validate,route,encode, default 2,2,2,2");
+        options.addOption("stagequeue",true,"pipeline messages queued per stage worker before the previous stage waits");
+        options.addOption("outhigh",true,"outbound queue high water mark per connection in bytes");
+        options.addOption("outlow",true,"outbound queue low water mark per connection in bytes");
+        options.addOption("overflow",true,"policy for connections over the high water mark, drop_oldest (default), disconnect or redirect");
+        options.addOption("metricsport",true,"serve metrics on http://127.0.0.1:<port>/metrics, off by default");
+        options.addOption("batchwindow",true,"microseconds to hold outgoing messages for a single batched write, default 0 (flush every tick)");
+        options.addOption("batchbytes",true,"maximum bytes gathered into a single write");
+        options.addOption("overflowgrace",true,"milliseconds a connection may stay over the high water mark before applying policy");
+        options.addOption("regtimeout",true,"milliseconds to wait for lock replies before failing a registration, default 10000");
+        options.addOption("idletimeout",true,"milliseconds a connection may send nothing before it is closed, default 0 (never)");
+        options.addOption("lockbatch",true,"offer servers batched lock messages, up to this many per frame, default 0 (off)");
+        options.addOption("lockbatchwindow",true,"milliseconds to wait for more lock messages before sending a batch, default 5");
+        options.addOption("phithreshold",true,"failure detector suspicion at which a server that stopped announcing is dropped, default 8, 0 for never");
+        options.addOption("dedupcapacity",true,"server message ids remembered to drop duplicates in a mesh, default 524288");
+        options.addOption("dedupttl",true,"milliseconds a server message id is remembered for, default 10000");
+        options.addOption("replaybytes",true,"bytes of recent broadcasts kept for clients logging in with resume_from, default 0 (off)");
+        options.addOption("userstore",true,"where registered users are kept in memory, heap (default) or offheap");
+        options.addOption("userdir",true,"directory to persist registered users in, kept in memory only if not given");
+        options.addOption("durability",true,"user log durability, sync (default, fsync before replying) or async");
+        options.addOption("snapshotevery",true,"user log records between compacted snapshots, default 10000");
+        options.addOption("journaldir",true,"directory to journal broadcast activities in for HISTORY, off if not given");
+        options.addOption("journalroll",true,"milliseconds before starting a new journal segment, default 3600000");
+        options.addOption("journalretention",true,"milliseconds activities are kept in the journal, default 86400000");
 
 
         // build the parser
@@ -176,6 +573,15 @@ public class Settings {
             }
         }
 
+        if(cmd.hasOption("peers")){
+            try{
+                setPeers(cmd.getOptionValue("peers"));
+            } catch (IllegalArgumentException e){
+                log.error("-peers requires comma separated hostname:port, parsed: "+cmd.getOptionValue("peers"));
+                help(options);
+            }
+        }
+
         if(cmd.hasOption("s")){
             setSecret(cmd.getOptionValue("s"));
         } else{
@@ -194,7 +600,276 @@ public class Settings {
             }
         }
 
+        if(cmd.hasOption("transport")){
+            try{
+                setTransport(Transport.valueOf(cmd.getOptionValue("transport").toUpperCase()));
+            } catch (IllegalArgumentException e){
+                log.error("-transport requires thread or nio, parsed: "+cmd.getOptionValue("transport"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("threads")){
+            try{
+                setThreadMode(ThreadMode.valueOf(cmd.getOptionValue("threads").toUpperCase()));
+            } catch (IllegalArgumentException e){
+                log.error("-threads requires platform or virtual, parsed: "+cmd.getOptionValue("threads"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("iothreads")){
+            try{
+                setIoThreads(Integer.parseInt(cmd.getOptionValue("iothreads")));
+            } catch (NumberFormatException e){
+                log.error("-iothreads requires a number, parsed: "+cmd.getOptionValue("iothreads"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("regthreads")){
+            try{
+                setRegistrationThreads(Integer.parseInt(cmd.getOptionValue("regthreads")));
+            } catch (NumberFormatException e){
+                log.error("-regthreads requires a number, parsed: "+cmd.getOptionValue("regthreads"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("pipeline")){
+            setPipeline(true);
+        }
+
+        if(cmd.hasOption("stagethreads")){
+            try{
+                String[] counts = cmd.getOptionValue("stagethreads").split(",");
+                if (counts.length != Stage.values().length) {
+                    throw new NumberFormatException();
+                }
+                for (Stage stage : Stage.values()) {
+                    setStageThreads(stage, Integer.parseInt(counts[stage.ordinal()].trim()));
+                }
+            } catch (NumberFormatException e){
+                log.error("-stagethreads requires four numbers as decode,validate,route,encode, parsed: "+cmd.getOptionValue("stagethreads"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("stagequeue")){
+            try{
+                setStageQueue(Integer.parseInt(cmd.getOptionValue("stagequeue")));
+            } catch (NumberFormatException e){
+                log.error("-stagequeue requires a number, parsed: "+cmd.getOptionValue("stagequeue"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("outhigh") || cmd.hasOption("outlow")){
+            try{
+                long high = cmd.hasOption("outhigh") ? Long.parseLong(cmd.getOptionValue("outhigh")) : getOutboundHighWater();
+                long low = cmd.hasOption("outlow") ? Long.parseLong(cmd.getOptionValue("outlow")) : getOutboundLowWater();
+                setOutboundWaterMarks(high, low);
+            } catch (NumberFormatException e){
+                log.error("-outhigh and -outlow require a number of bytes");
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("overflow")){
+            try{
+                setOverflowPolicy(OverflowPolicy.valueOf(cmd.getOptionValue("overflow").toUpperCase()));
+            } catch (IllegalArgumentException e){
+                log.error("-overflow requires drop_oldest, disconnect or redirect, parsed: "+cmd.getOptionValue("overflow"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("metricsport")){
+            try{
+                setMetricsPort(Integer.parseInt(cmd.getOptionValue("metricsport")));
+            } catch (NumberFormatException e){
+                log.error("-metricsport requires a port number, parsed: "+cmd.getOptionValue("metricsport"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("batchwindow")){
+            try{
+                setBatchWindow(Long.parseLong(cmd.getOptionValue("batchwindow")));
+            } catch (NumberFormatException e){
+                log.error("-batchwindow requires a number in microseconds, parsed: "+cmd.getOptionValue("batchwindow"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("batchbytes")){
+            try{
+                setMaxBatchBytes(Integer.parseInt(cmd.getOptionValue("batchbytes")));
+            } catch (NumberFormatException e){
+                log.error("-batchbytes requires a number of bytes, parsed: "+cmd.getOptionValue("batchbytes"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("overflowgrace")){
+            try{
+                setOverflowGrace(Long.parseLong(cmd.getOptionValue("overflowgrace")));
+            } catch (NumberFormatException e){
+                log.error("-overflowgrace requires a number in milliseconds, parsed: "+cmd.getOptionValue("overflowgrace"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("regtimeout")){
+            try{
+                setRegistrationTimeout(Long.parseLong(cmd.getOptionValue("regtimeout")));
+            } catch (NumberFormatException e){
+                log.error("-regtimeout requires a number in milliseconds, parsed: "+cmd.getOptionValue("regtimeout"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("idletimeout")){
+            try{
+                setIdleTimeout(Long.parseLong(cmd.getOptionValue("idletimeout")));
+            } catch (NumberFormatException e){
+                log.error("-idletimeout requires a number in milliseconds, parsed: "+cmd.getOptionValue("idletimeout"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("lockbatch")){
+            try{
+                setLockBatch(Integer.parseInt(cmd.getOptionValue("lockbatch")));
+            } catch (NumberFormatException e){
+                log.error("-lockbatch requires a number of messages, parsed: "+cmd.getOptionValue("lockbatch"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("lockbatchwindow")){
+            try{
+                setLockBatchWindow(Long.parseLong(cmd.getOptionValue("lockbatchwindow")));
+            } catch (NumberFormatException e){
+                log.error("-lockbatchwindow requires a number in milliseconds, parsed: "+cmd.getOptionValue("lockbatchwindow"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("phithreshold")){
+            try{
+                setPhiThreshold(Double.parseDouble(cmd.getOptionValue("phithreshold")));
+            } catch (NumberFormatException e){
+                log.error("-phithreshold requires a number, parsed: "+cmd.getOptionValue("phithreshold"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("dedupcapacity")){
+            try{
+                setDedupCapacity(Integer.parseInt(cmd.getOptionValue("dedupcapacity")));
+            } catch (NumberFormatException e){
+                log.error("-dedupcapacity requires a number of ids, parsed: "+cmd.getOptionValue("dedupcapacity"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("dedupttl")){
+            try{
+                setDedupTtl(Long.parseLong(cmd.getOptionValue("dedupttl")));
+            } catch (NumberFormatException e){
+                log.error("-dedupttl requires a number in milliseconds, parsed: "+cmd.getOptionValue("dedupttl"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("replaybytes")){
+            try{
+                setReplayBytes(Integer.parseInt(cmd.getOptionValue("replaybytes")));
+            } catch (NumberFormatException e){
+                log.error("-replaybytes requires a number of bytes, parsed: "+cmd.getOptionValue("replaybytes"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("userstore")){
+            try{
+                setUserStore(UserStore.valueOf(cmd.getOptionValue("userstore").toUpperCase()));
+            } catch (IllegalArgumentException e){
+                log.error("-userstore requires heap or offheap, parsed: "+cmd.getOptionValue("userstore"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("userdir")){
+            setUserDirectory(cmd.getOptionValue("userdir"));
+        }
+
+        if(cmd.hasOption("durability")){
+            try{
+                setDurability(Durability.valueOf(cmd.getOptionValue("durability").toUpperCase()));
+            } catch (IllegalArgumentException e){
+                log.error("-durability requires sync or async, parsed: "+cmd.getOptionValue("durability"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("snapshotevery")){
+            try{
+                setSnapshotEvery(Integer.parseInt(cmd.getOptionValue("snapshotevery")));
+            } catch (NumberFormatException e){
+                log.error("-snapshotevery requires a number of records, parsed: "+cmd.getOptionValue("snapshotevery"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("journaldir")){
+            setJournalDirectory(cmd.getOptionValue("journaldir"));
+        }
+
+        if(cmd.hasOption("journalroll")){
+            try{
+                setJournalRoll(Long.parseLong(cmd.getOptionValue("journalroll")));
+            } catch (NumberFormatException e){
+                log.error("-journalroll requires a number in milliseconds, parsed: "+cmd.getOptionValue("journalroll"));
+                help(options);
+            }
+        }
+
+        if(cmd.hasOption("journalretention")){
+            try{
+                setJournalRetention(Long.parseLong(cmd.getOptionValue("journalretention")));
+            } catch (NumberFormatException e){
+                log.error("-journalretention requires a number in milliseconds, parsed: "+cmd.getOptionValue("journalretention"));
+                help(options);
+            }
+        }
+
+
+    }
+
+    public enum Transport {
+        THREAD, NIO
+    }
+
+    public enum ThreadMode {
+        PLATFORM, VIRTUAL
+    }
+
+    public enum Stage {
+        DECODE, VALIDATE, ROUTE, ENCODE
+    }
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT, REDIRECT
+    }
+
+    public enum UserStore {
+        HEAP, OFFHEAP
+    }
 
+    public enum Durability {
+        SYNC, ASYNC
     }
 
 }
@@ -0,0 +1,203 @@
+package activitystreamer.util;
+
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Project : Activity Streamer Server
+ * Author : Daniel Chan (mchan@student.unimelb.edu.au)
+ * Date : 22 Mar 2018
+ */
+
+/**
+ * Fixed set of single threaded executors. Tasks with the same key always run on the same stripe in
+ * submission order, tasks with different keys may run in parallel.
+ * Stripe queues are unbounded unless a capacity is given, in which case submitting to a full stripe blocks
+ * until it has room, or with offer is queued past the capacity for callers which mustn't wait.
+ */
+public class StripedExecutor {
+    private static final Logger log = LogManager.getLogger();
+
+    private final ThreadPoolExecutor[] stripes;
+    private final Semaphore[] room; // free queue places per stripe, null if unbounded
+    private final AtomicInteger peakDepth = new AtomicInteger(0);
+
+    public StripedExecutor(String name, int count) {
+        this(name, count, 0);
+    }
+
+    /**
+     * @param name     thread name prefix
+     * @param count    number of stripes
+     * @param capacity queued tasks per stripe, 0 for unbounded
+     */
+    public StripedExecutor(final String name, int count, int capacity) {
+        stripes = new ThreadPoolExecutor[count];
+        room = capacity > 0 ? new Semaphore[count] : null;
+        for (int i = 0; i < count; i++) {
+            final String threadName = name + "-" + i;
+            // queue itself is unbounded so offer can go past the capacity, which room enforces otherwise
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, threadName);
+                        }
+                    });
+            if (room != null) {
+                room[i] = new Semaphore(capacity);
+            }
+        }
+    }
+
+    /**
+     * Run task on the stripe owning key
+     *
+     * @param key  ordering key, eg. username
+     * @param task task to run
+     * @return false if it was rejected as the executor is shutting down
+     */
+    public boolean execute(Object key, Runnable task) {
+        int index = indexFor(key);
+        if (room != null) {
+            // full, wait for room rather than dropping, which pushes back on the submitter
+            try {
+                room[index].acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("ERROR - task rejected, interrupted waiting for room");
+                return false;
+            }
+        }
+        return submit(index, task, room != null);
+    }
+
+    /**
+     * Run task on the stripe owning key without waiting, queued even if the stripe is full
+     *
+     * @param key  ordering key, eg. username
+     * @param task task to run
+     * @return false if it was rejected as the executor is shutting down
+     */
+    public boolean offer(Object key, Runnable task) {
+        int index = indexFor(key);
+        return submit(index, task, room != null && room[index].tryAcquire());
+    }
+
+    /**
+     * @param key ordering key
+     * @return false if the stripe owning key is at or past its capacity
+     */
+    public boolean hasRoom(Object key) {
+        return room == null || room[indexFor(key)].availablePermits() > 0;
+    }
+
+    /**
+     * @param permit true if a place in the stripe's queue was taken for the task, given back once it starts
+     */
+    private boolean submit(final int index, final Runnable task, final boolean permit) {
+        ThreadPoolExecutor stripe = stripes[index];
+        try {
+            stripe.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (permit) {
+                        room[index].release();
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.error("ERROR - uncaught exception in striped task : " + e, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (permit) {
+                room[index].release();
+            }
+            log.error("ERROR - task rejected, executor is shutting down");
+            return false;
+        }
+
+        int depth = stripe.getQueue().size();
+        int peak;
+        while (depth > (peak = peakDepth.get()) && !peakDepth.compareAndSet(peak, depth)) {
+            // retry until recorded
+        }
+        return true;
+    }
+
+    /**
+     * @return tasks currently waiting across all stripes
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            depth += stripe.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return deepest any single stripe queue has been since the last call, then starts tracking again
+     */
+    public int takePeakQueueDepth() {
+        return peakDepth.getAndSet(0);
+    }
+
+    /**
+     * @return tasks completed across all stripes
+     */
+    public long getCompletedTasks() {
+        long completed = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            completed += stripe.getCompletedTaskCount();
+        }
+        return completed;
+    }
+
+    /**
+     * Stop accepting tasks, already queued tasks still run
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+
+    /**
+     * Wait for queued tasks to finish after shutdown
+     *
+     * @param timeout milliseconds to wait across all stripes
+     * @return true if every stripe finished in time
+     */
+    public boolean awaitTermination(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            for (ThreadPoolExecutor stripe : stripes) {
+                if (!stripe.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private int indexFor(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % stripes.length;
+    }
+}